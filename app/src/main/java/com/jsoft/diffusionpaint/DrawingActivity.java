@@ -21,6 +21,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
@@ -28,6 +29,7 @@ import android.widget.MultiAutoCompleteTextView;
 import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.jaredrummler.android.colorpicker.ColorPickerDialog;
@@ -35,12 +37,16 @@ import com.jaredrummler.android.colorpicker.ColorPickerDialogListener;
 import com.jsoft.diffusionpaint.component.DrawingView;
 import com.jsoft.diffusionpaint.component.DrawingViewListener;
 import com.jsoft.diffusionpaint.component.CircleView;
+import com.jsoft.diffusionpaint.dto.SdJob;
 import com.jsoft.diffusionpaint.dto.SdStyle;
 import com.jsoft.diffusionpaint.helper.PaintDb;
+import com.jsoft.diffusionpaint.helper.PayloadPreEncoder;
 import com.jsoft.diffusionpaint.dto.Sketch;
 import com.jsoft.diffusionpaint.helper.SdApiHelper;
 import com.jsoft.diffusionpaint.helper.SdApiResponseListener;
+import com.jsoft.diffusionpaint.helper.SdJobQueue;
 import com.jsoft.diffusionpaint.helper.Utils;
+import com.jsoft.diffusionpaint.helper.WarmUpManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -49,6 +55,7 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -63,6 +70,8 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
     private SeekBar seekWidth;
     private String aspectRatio;
     private SdApiHelper sdApiHelper;
+    private PayloadPreEncoder preEncoder;
+    private WarmUpManager warmUpManager;
     FloatingActionButton paletteButton;
     FloatingActionButton undoButton;
     FloatingActionButton redoButton;
@@ -89,14 +98,36 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
 
         db = new PaintDb(this);
         sdApiHelper = new SdApiHelper(this, this);
+        preEncoder = new PayloadPreEncoder(sdApiHelper);
+        sdApiHelper.loadCachedLists();
         if (loraList == null) {
-            sdApiHelper.sendGetRequest("getLoras", "/sdapi/v1/loras");
+            sdApiHelper.sendCachedGetRequest("getLoras", "/sdapi/v1/loras");
         }
         if (styleList == null) {
-            sdApiHelper.sendGetRequest("getStyles", "/sdapi/v1/prompt-styles");
+            sdApiHelper.sendCachedGetRequest("getStyles", "/sdapi/v1/prompt-styles");
         }
         Intent i = getIntent();
         loadSketch(i);
+        warmUpManager = new WarmUpManager(sdApiHelper, sharedPreferences);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        warmUpManager.start(mCurrentSketch);
+    }
+
+    @Override
+    protected void onPause() {
+        warmUpManager.stop();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        warmUpManager.shutdown();
+        preEncoder.shutdown();
+        super.onDestroy();
     }
 
     public static void clearPath() {
@@ -280,7 +311,7 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
             if (loraList != null) {
                 showInputDialog();
             } else {
-                sdApiHelper.sendGetRequest("getLoras2", "/sdapi/v1/loras");
+                sdApiHelper.sendCachedGetRequest("getLoras2", "/sdapi/v1/loras");
             }
         });
 
@@ -434,6 +465,19 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
             }
         }
 
+        Sketch preEncodeSketch = mDrawingView.prepareBitmap(mCurrentSketch.copy(), bmRef);
+        preEncoder.cancel();
+        preEncoder.prepare(preEncodeSketch, cnModeList.get(sdMode.getSelectedItemPosition()));
+        sdMode.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                preEncoder.prepare(preEncodeSketch, cnModeList.get(position));
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        });
+
         TextView sdAspectRatioTxt = dialogView.findViewById(R.id.sd_aspect_ratio_txt);
         Spinner sdAspectRatio = dialogView.findViewById(R.id.sd_aspect_ratio);
         sdAspectRatioTxt.setVisibility(View.GONE);
@@ -449,6 +493,13 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
         sdNumGen.setAdapter(sdNumGenAdapter);
         sdNumGen.setSelection(0);
 
+        Spinner sdRunMode = dialogView.findViewById(R.id.sd_run_mode);
+        ArrayAdapter<String> sdRunModeAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item,
+                new String[]{"Now", "Add to queue", "Add to queue (high priority)"});
+        sdRunModeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        sdRunMode.setAdapter(sdRunModeAdapter);
+        sdRunMode.setSelection(0);
+
         Spinner sdStyle = dialogView.findViewById(R.id.sd_style);
         List<String> sdStyleList = new ArrayList<>();
         sdStyleList.add("--None--");
@@ -469,6 +520,7 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
             mCurrentSketch.setPrompt(promptText);
             int selectMode = sdMode.getSelectedItemPosition();
             mCurrentSketch.setCnMode(cnModeList.get(selectMode));
+            sharedPreferences.edit().putString("lastCnMode", mCurrentSketch.getCnMode()).apply();
             String negPromptText = negPromptTV.getText().toString();
             mCurrentSketch.setNegPrompt(negPromptText);
             String style = sdStyle.getSelectedItem().toString();
@@ -477,12 +529,17 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
             int numGen = sdNumGen.getSelectedItemPosition() + 1;
             if (mCurrentSketch.getCnMode().startsWith("inpaint") && mDrawingView.isEmpty() && Utils.isEmptyBitmap(mCurrentSketch.getImgPaint())) {
                 gotoViewSdImageActivity(mCurrentSketch.getId(), CN_MODE_ORIGIN, numGen);
+            } else if (sdRunMode.getSelectedItemPosition() > 0) {
+                addToQueue(numGen, sdRunMode.getSelectedItemPosition() == 2 ? SdJob.PRIORITY_HIGH : SdJob.PRIORITY_NORMAL);
             } else {
                 gotoViewSdImageActivity(mCurrentSketch.getId(), mCurrentSketch.getCnMode(), numGen);
             }
         });
 
-        builder.setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
+        builder.setNegativeButton("Cancel", (dialog, which) -> {
+            preEncoder.cancel();
+            dialog.dismiss();
+        });
 
         AlertDialog dialog = builder.create();
         if(!isFinishing()) dialog.show();
@@ -521,10 +578,28 @@ public class DrawingActivity extends AppCompatActivity implements ColorPickerDia
                 }
             });
 
+    private void addToQueue(int numGen, int priority) {
+        int sketchId = mCurrentSketch.getId();
+        String cnMode = mCurrentSketch.getCnMode();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                Sketch sketch = db.getSketch(sketchId);
+                sketch.setCnMode(cnMode);
+                SdJobQueue.enqueue(this, sdApiHelper, sketch, numGen, priority);
+                runOnUiThread(() -> Toast.makeText(this, "Added to generation queue", Toast.LENGTH_SHORT).show());
+            } catch (Exception e) {
+                e.printStackTrace();
+                runOnUiThread(() -> Toast.makeText(this, "Failed to add to queue: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+            return "";
+        });
+    }
+
     public void gotoViewSdImageActivity(int sketchID, String cnMode, int numGen) {
         ViewSdImageActivity.mBitmap = null;
         ViewSdImageActivity.inpaintBitmap = null;
         ViewSdImageActivity.isCallingAPI = false;
+        ViewSdImageActivity.preparedSketch = sketchID == mCurrentSketch.getId() ? mCurrentSketch.copy() : null;
         Intent intent = new Intent(DrawingActivity.this, ViewSdImageActivity.class);
         intent.putExtra("sketchId", sketchID);
         intent.putExtra("cnMode", cnMode);
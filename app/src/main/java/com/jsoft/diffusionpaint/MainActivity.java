@@ -43,9 +43,12 @@ import com.google.android.material.button.MaterialButton;
 import com.google.gson.Gson;
 import com.jsoft.diffusionpaint.adapter.GridViewImageAdapter;
 import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.helper.HttpClientRegistry;
+import com.jsoft.diffusionpaint.helper.NetworkStats;
 import com.jsoft.diffusionpaint.helper.PaintDb;
 import com.jsoft.diffusionpaint.helper.SdApiHelper;
 import com.jsoft.diffusionpaint.helper.SdApiResponseListener;
+import com.jsoft.diffusionpaint.helper.SdMetadataCache;
 import com.jsoft.diffusionpaint.dto.Sketch;
 import com.jsoft.diffusionpaint.helper.Utils;
 
@@ -124,6 +127,8 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
         isPermissionGranted();
 
         sdApiHelper = new SdApiHelper(this, this);
+        sdApiHelper.loadCachedLists();
+        sdApiHelper.revalidateMetadata();
 
         Intent intent = getIntent();
         if (Intent.ACTION_SEND.equals(intent.getAction())) {
@@ -324,6 +329,9 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
             case R.id.mi_sd_server_address:
                 showServerAddressInput();
                 break;
+            case R.id.mi_sd_extra_servers:
+                showTextInputDialog("sdExtraServers", "Additional SD-webui Addresses:", "Comma separated, e.g. http://192.168.1.102:7860", "");
+                break;
             case R.id.mi_prompt_prefix:
                 showTextInputDialog("promptPrefix", "Prompt Prefix:", "Color drawing of ", "");
                 break;
@@ -335,7 +343,7 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
                 break;
             case R.id.mi_autocomplete_phrases:
                 if (DrawingActivity.loraList == null) {
-                    sdApiHelper.sendGetRequest("getLoras2", "/sdapi/v1/loras");
+                    sdApiHelper.sendCachedGetRequest("getLoras2", "/sdapi/v1/loras");
                 } else {
                     showAutoCompleteDialog();
                 }
@@ -351,63 +359,63 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
                 break;
             case R.id.mi_cn_scribble:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnScribble", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnScribble", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_depth:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnDepth", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnDepth", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_pose:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnPose", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnPose", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_canny:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnCanny", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnCanny", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_normal:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnNormal", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnNormal", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_mlsd:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnMlsd", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnMlsd", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_lineart:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnLineart", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnLineart", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_softedge:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnSoftedge", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnSoftedge", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_seg:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnSeg", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnSeg", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_tile:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnTile", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnTile", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_ipadapter:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnIPAdapter", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnIPAdapter", "/controlnet/model_list");
                 break;
             case R.id.mi_cnxl_ipadapter:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnxlIPAdapter", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnxlIPAdapter", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_other1:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnOther1", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnOther1", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_other2:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnOther2", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnOther2", "/controlnet/model_list");
                 break;
             case R.id.mi_cn_other3:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setCnOther3", "/controlnet/model_list");
+                sdApiHelper.sendCachedGetRequest("setCnOther3", "/controlnet/model_list");
                 break;
             case R.id.mi_sd_output_dim:
                 showOutputDimenDialog();
@@ -418,6 +426,18 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
             case R.id.mi_steps:
                 showTextInputDialog("defaultSteps", "Steps:", "Integer from 1 to 150", "30");
                 break;
+            case R.id.mi_max_batch_size:
+                showTextInputDialog("maxBatchSize", "Maximum Batch Size:", "Integer, images generated together on GPU", "1");
+                break;
+            case R.id.mi_restore_settings:
+                showTextInputDialog("restoreSettingsAfterwards", "Restore Model After Generation:", "true / false", "false");
+                break;
+            case R.id.mi_preload_checkpoint:
+                showTextInputDialog("preloadCheckpoint", "Preload Checkpoint While Drawing:", "true / false", "false");
+                break;
+            case R.id.mi_fixed_seed:
+                showTextInputDialog("fixedSeed", "Fixed Seed:", "Integer, -1 for a random seed. Fixed seed results are cached.", "-1");
+                break;
             case R.id.mi_clip_skip:
                 showTextInputDialog("defaultClipSkip", "Clip skip:", "Integer from 1 to 12", "1");
                 break;
@@ -426,35 +446,44 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
                 break;
             case R.id.mi_sd_model:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSDModel", "/sdapi/v1/sd-models");
+                sdApiHelper.sendCachedGetRequest("setSDModel", "/sdapi/v1/sd-models");
                 break;
             case R.id.mi_sd_inpaint_model:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSDInpaintModel", "/sdapi/v1/sd-models");
+                sdApiHelper.sendCachedGetRequest("setSDInpaintModel", "/sdapi/v1/sd-models");
                 break;
             case R.id.mi_sdxl_base_model:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSDXLBaseModel", "/sdapi/v1/sd-models");
+                sdApiHelper.sendCachedGetRequest("setSDXLBaseModel", "/sdapi/v1/sd-models");
                 break;
             case R.id.mi_sdxl_turbo_model:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSDXLTurboModel", "/sdapi/v1/sd-models");
+                sdApiHelper.sendCachedGetRequest("setSDXLTurboModel", "/sdapi/v1/sd-models");
                 break;
             case R.id.mi_sdxl_inpaint_model:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSDXLInpaintModel", "/sdapi/v1/sd-models");
+                sdApiHelper.sendCachedGetRequest("setSDXLInpaintModel", "/sdapi/v1/sd-models");
                 break;
             case R.id.mi_sd_sampler:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setSampler", "/sdapi/v1/samplers");
+                sdApiHelper.sendCachedGetRequest("setSampler", "/sdapi/v1/samplers");
                 break;
             case R.id.mi_upscaler:
                 if (!validateSettings()) break;
-                sdApiHelper.sendGetRequest("setUpscaler", "/sdapi/v1/upscalers");
+                sdApiHelper.sendCachedGetRequest("setUpscaler", "/sdapi/v1/upscalers");
+                break;
+            case R.id.mi_metadata_cache_ttl:
+                showTextInputDialog("metadataCacheTtl", "Server Model List Cache (minutes):", "Integer, older lists are shown and refreshed for next time, 0 to always reload", String.valueOf(SdMetadataCache.DEFAULT_TTL_MINUTES));
                 break;
             case R.id.mi_upscaler_gfpgan:
                 showTextInputDialog("upscalerGFPGAN", "GFPGAN Visibility:", "Decimal from 0.0 to 1.0", "0.8");
                 break;
+            case R.id.mi_upscale_parallelism:
+                showTextInputDialog("upscaleParallelism", "Upscale Parallelism:", "Integer, upscale tiles sent at once across the servers", "4");
+                break;
+            case R.id.mi_network_stats:
+                showNetworkStatsDialog();
+                break;
             case R.id.mi_about:
                 Intent intent = new Intent(Intent.ACTION_VIEW);
                 intent.setData(Uri.parse("https://github.com/jordenyt/stable_diffusion_sketch"));
@@ -546,6 +575,31 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
         if(!isFinishing()) dialog.show();
     }
 
+    private void showNetworkStatsDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Network Diagnostics");
+        builder.setMessage(NetworkStats.getSummary() + "\nConnection pool: " + HttpClientRegistry.getPoolStats());
+        builder.setPositiveButton("Export JSON", (dialog, which) -> {
+            JSONObject jsonObject = NetworkStats.toJSON();
+            try {
+                jsonObject.put("connectionPool", HttpClientRegistry.getPoolStats());
+                jsonObject.put("exportTime", System.currentTimeMillis());
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("application/json");
+                intent.putExtra(Intent.EXTRA_SUBJECT, "SD Sketch network diagnostics");
+                intent.putExtra(Intent.EXTRA_TEXT, jsonObject.toString(2));
+                startActivity(Intent.createChooser(intent, "Export network diagnostics"));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        });
+        builder.setNeutralButton("Reset", (dialog, which) -> NetworkStats.reset());
+        builder.setNegativeButton("Close", (dialog, which) -> dialog.dismiss());
+
+        AlertDialog dialog = builder.create();
+        if(!isFinishing()) dialog.show();
+    }
+
     private void showOutputDimenDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         LayoutInflater inflater = getLayoutInflater();
@@ -649,6 +703,9 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
             }
         }
 
+        dialogView.findViewById(R.id.sd_run_mode_txt).setVisibility(View.GONE);
+        dialogView.findViewById(R.id.sd_run_mode).setVisibility(View.GONE);
+
         Spinner sdNumGen = dialogView.findViewById(R.id.sd_num_generation);
         List<String> sdNumGenList = new ArrayList<>();
         for (int i=1;i<=5;i++) {
@@ -807,9 +864,9 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
         if (!validateSettings()) return;
 
         if (DrawingActivity.loraList == null) {
-            sdApiHelper.sendGetRequest("getLoras", "/sdapi/v1/loras");
+            sdApiHelper.sendCachedGetRequest("getLoras", "/sdapi/v1/loras");
         } else if (DrawingActivity.styleList == null) {
-            sdApiHelper.sendGetRequest("getStyles", "/sdapi/v1/prompt-styles");
+            sdApiHelper.sendCachedGetRequest("getStyles", "/sdapi/v1/prompt-styles");
         } else {
             showPromptDialog();
         }
@@ -949,6 +1006,7 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
                 showAutoCompleteDialog();
             } else if ("refreshLoras".equals(requestType)) {
                 DrawingActivity.loraList = null;
+                SdMetadataCache.invalidate("/sdapi/v1/loras");
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
                 builder.setTitle("Refresh LORAs Command sent.")
                         .setPositiveButton("OK", (dialog, id) -> {
@@ -956,6 +1014,7 @@ public class MainActivity extends AppCompatActivity implements SdApiResponseList
                 AlertDialog alert = builder.create();
                 alert.show();
             } else if ("refreshCheckpoints".equals(requestType)) {
+                SdMetadataCache.invalidate("/sdapi/v1/sd-models");
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
                 builder.setTitle("Refresh Checkpoints Command sent.")
                         .setPositiveButton("OK", (dialog, id) -> {
@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -33,14 +34,19 @@ import android.widget.Toast;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.jsoft.diffusionpaint.component.TouchImageView;
 import com.jsoft.diffusionpaint.dto.ApiResult;
+import com.jsoft.diffusionpaint.helper.CancellationToken;
+import com.jsoft.diffusionpaint.helper.LivePreviewDecoder;
 import com.jsoft.diffusionpaint.helper.PaintDb;
+import com.jsoft.diffusionpaint.helper.ProgressPoller;
 import com.jsoft.diffusionpaint.helper.SdApiHelper;
+import com.jsoft.diffusionpaint.helper.SdBackendPool;
 import com.jsoft.diffusionpaint.helper.SdApiResponseListener;
+import com.jsoft.diffusionpaint.helper.TiledRenderer;
+import com.jsoft.diffusionpaint.helper.TiledUpscaler;
 import com.jsoft.diffusionpaint.dto.SdParam;
 import com.jsoft.diffusionpaint.dto.Sketch;
 import com.jsoft.diffusionpaint.helper.Utils;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -48,13 +54,13 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 
+import okhttp3.Call;
+
 public class ViewSdImageActivity extends AppCompatActivity implements SdApiResponseListener {
 
     public static final String CHANNEL_ID = "foreground_service_channel";
@@ -82,13 +88,20 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     public static boolean isCallingAPI = false;
     private static List<ApiResult> apiResultList;
     private static int currentResult;
-    private static Map<String, String> sdModelList = null;
     private static Handler handler;
     public static int remainGen = 0;
     private boolean isPaused = false;
     private ViewSdImageService mService;
     private boolean mBound = false;
     public static boolean isInterrupted = false;
+    public static String backendUrl;
+    public static Sketch preparedSketch;
+    public static CancellationToken jobToken;
+    private static final long INTERRUPT_GRACE = 15000;
+    // not cleared with the progress callbacks, the grace cancel must also run while paused
+    private static final Handler interruptHandler = new Handler(Looper.getMainLooper());
+    public static final ProgressPoller progressPoller = new ProgressPoller();
+    private static final LivePreviewDecoder livePreviewDecoder = new LivePreviewDecoder(1024);
 
     @Override
     protected void onCreate(Bundle savedInstanceState){
@@ -120,10 +133,12 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                 notificationManager.createNotificationChannel(channel);
             }
             apiResultList = null;
+            TiledUpscaler.deleteResults(getCacheDir());
             currentResult = 0;
             remainGen = i.getIntExtra("numGen",1);
             if (sketchId >= 0) {
-                Sketch dbSketch = db.getSketch(sketchId);
+                // the sketch handed over by DrawingActivity saves reloading it, and its images are already encoded
+                Sketch dbSketch = (preparedSketch != null && preparedSketch.getId() == sketchId) ? preparedSketch : db.getSketch(sketchId);
                 if (dbSketch != null) {
                     mCurrentSketch = dbSketch;
                     mCurrentSketch.setCnMode(cnMode);
@@ -170,6 +185,7 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                 mCurrentSketch = new Sketch();
             }
         }
+        preparedSketch = null;
 
         initUI(cnMode);
 
@@ -185,20 +201,13 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                 remainGen = 0;
                 hideSpinner();
             } else {
-                if (cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_V) || cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_H)) {
-                    SdParam param = sdApiHelper.getSdCnParm(mCurrentSketch.getCnMode());
-                    mCurrentSketch.setImgBackground(Utils.getOutpaintBmp(mCurrentSketch.getImgBackground(), cnMode, Color.BLACK, false, param.sdSize));
-                    mCurrentSketch.setImgPreview(Utils.getOutpaintBmp(mCurrentSketch.getImgPreview(), cnMode, Color.BLUE, false, param.sdSize));
-                    mCurrentSketch.setImgPaint(Utils.getOutpaintBmp(mCurrentSketch.getImgPaint(), cnMode, Color.BLACK, true, param.sdSize));
-                    mBitmap = mCurrentSketch.getImgPreview();
-                    sdImage.setImageBitmap(mBitmap);
-                } else if (cnMode.equals(Sketch.CN_MODE_INPAINT_MERGE)) {
-                    mCurrentSketch.setImgBackground(mCurrentSketch.getImgBgRef());
-                    mCurrentSketch.setImgPaint(mCurrentSketch.getImgBgRefPaint(32));
-                    mCurrentSketch.setImgPreview(mCurrentSketch.getImgBgRefPreview());
+                if (cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_V) || cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_H)
+                        || cnMode.equals(Sketch.CN_MODE_INPAINT_MERGE)) {
+                    Utils.prepareSketchForMode(mCurrentSketch, sdApiHelper.getSdCnParm(mCurrentSketch.getCnMode()));
                     mBitmap = mCurrentSketch.getImgPreview();
                     sdImage.setImageBitmap(mBitmap);
                 }
+                backendUrl = sdApiHelper.getBackendPool().select();
                 CompletableFuture.supplyAsync(() -> {
                     getSdModel();
                     return "";
@@ -267,12 +276,27 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                     jsonObject = sdApiHelper.getExtraSingleImageJSON(inpaintBitmap);
                 }
             } else {
-                jsonObject = sdApiHelper.getExtraSingleImageJSON(mBitmap);
+                double scale = sdApiHelper.getUpscaleFactor(mBitmap);
+                if (TiledUpscaler.isNeeded(mBitmap, scale)) {
+                    showSpinner();
+                    isInterrupted = false;
+                    if (mBound) {
+                        jobToken = null;
+                        mService.setTiledUpscaler(new TiledUpscaler(sdApiHelper, mBitmap, scale, getCacheDir(), sdApiHelper.getUpscaleParallelism()));
+                        Intent intent = new Intent(this, ViewSdImageService.class);
+                        intent.putExtra("requestType", "tiledExtraSingleImage");
+                        startService(intent);
+                    }
+                    return;
+                }
+                jsonObject = sdApiHelper.getExtraSingleImageJSON(mBitmap, scale);
             }
             showSpinner();
             isInterrupted = false;
             if (mBound) {
-                mService.setObject(sharedPreferences.getString("sdServerAddress", ""), jsonObject);
+                jobToken = null;
+                backendUrl = sdApiHelper.getBackendPool().select();
+                mService.setObject(backendUrl, jsonObject);
                 Intent intent = new Intent(this, ViewSdImageService.class);
                 intent.putExtra("requestType", "extraSingleImage");
                 startService(intent);
@@ -374,15 +398,30 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                     exif = jsonExif.toString();
                 } catch (JSONException ignored) {}
             }
-            Utils.saveBitmapToExternalStorage(this, mBitmap, savedImageName, exif);
+            File imageFile = apiResultList.get(currentResult).imageFile;
+            if (imageFile != null) {
+                savedImageName = savedImageName.replace(".jpg", ".png");
+                Utils.saveFileToExternalStorage(this, imageFile, savedImageName, exif);
+            } else {
+                Utils.saveBitmapToExternalStorage(this, mBitmap, savedImageName, exif);
+            }
             apiResultList.get(currentResult).savedImageName = savedImageName;
         }
     }
 
     public void goBack() {
         if (isCallingSD && !isInterrupted) {
-            sdApiHelper.sendPostRequest("interrupt", "/sdapi/v1/interrupt", new JSONObject());
             isInterrupted = true;
+            handler.removeCallbacks(progressRequest);
+            CancellationToken token = jobToken;
+            if (token == null || !token.isUploaded()) {
+                // the server has nothing to work on yet, abort the upload right away
+                if (token != null) token.cancel();
+            } else {
+                // the server is working on it, interrupt to get the partial result but do not wait for long
+                sdApiHelper.sendRequest("interrupt", backendUrl, "/sdapi/v1/interrupt", new JSONObject(), "POST");
+                interruptHandler.postDelayed(token::cancel, INTERRUPT_GRACE);
+            }
         } else if (isCallingSD || isCallingAPI) {
             // do Nothing
         } else {
@@ -407,6 +446,7 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     @Override
     public void onPause() {
         isPaused = true;
+        sdApiHelper.getBackendPool().stopHealthChecks();
         handler.removeCallbacksAndMessages(null);
         super.onPause();
     }
@@ -414,6 +454,7 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     @Override
     public void onResume() {
         isPaused = false;
+        sdApiHelper.getBackendPool().startHealthChecks(SdBackendPool.DEFAULT_CHECK_INTERVAL_SECONDS);
         updateScreen();
         super.onResume();
     }
@@ -434,34 +475,11 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     };
 
     private void getSdModel() {
-        if (sdModelList == null) {
+        if (sdApiHelper.getCachedMetadata("/sdapi/v1/sd-models") == null) {
             isCallingAPI = true;
-            sdApiHelper.sendGetRequest("getSDModel", "/sdapi/v1/sd-models");
+            sdApiHelper.sendCachedGetRequest("getSDModel", "/sdapi/v1/sd-models");
         } else {
-            try {
-                setSdModel();
-            } catch (JSONException e) {
-                onSdApiFailure("setConfig", e.getMessage());
-            }
-        }
-    }
-
-    private void setSdModel() throws JSONException {
-        SdParam param = sdApiHelper.getSdCnParm(mCurrentSketch.getCnMode());
-        String preferredModel = param.model.equals(SdParam.SD_MODEL_INPAINT) ? sharedPreferences.getString("sdInpaintModel", ""):
-                param.model.equals(SdParam.SD_MODEL_SDXL_BASE) ? sharedPreferences.getString("sdxlBaseModel", ""):
-                param.model.equals(SdParam.SD_MODEL_SDXL_TURBO) ? sharedPreferences.getString("sdxlTurboModel", ""):
-                param.model.equals(SdParam.SD_MODEL_SDXL_INPAINT) ? sharedPreferences.getString("sdxlInpaintModel", ""):
-                sharedPreferences.getString("sdModelCheckpoint", "");
-        JSONObject setConfigRequest = new JSONObject();
-        if (sdModelList !=null && sdModelList.get(preferredModel) != null) {
-            isCallingAPI = true;
-            setConfigRequest.put("CLIP_stop_at_last_layers", param.clipSkip);
-            setConfigRequest.put("sd_model_checkpoint", preferredModel);
-            setConfigRequest.put("sd_checkpoint_hash", sdModelList.get(preferredModel));
-            sdApiHelper.sendPostRequest("setSdModel", "/sdapi/v1/options", setConfigRequest);
-        } else {
-            callSD4Img();
+            runOnUiThread(this::callSD4Img);
         }
     }
 
@@ -491,12 +509,28 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
         editButton.setVisibility((apiResultList.size() > 0) ? View.VISIBLE : View.GONE);
     }
 
+    public void onSdApiCancelled(String requestType) {
+        progressPoller.finish(false);
+        isCallingSD = false;
+        isCallingAPI = false;
+        isInterrupted = false;
+        jobToken = null;
+        handler.removeCallbacksAndMessages(null);
+        livePreviewDecoder.reset();
+        Toast.makeText(this, "Generation cancelled", Toast.LENGTH_SHORT).show();
+        if (apiResultList.size() > 0) {
+            mBitmap = apiResultList.get(currentResult).mBitmap;
+        }
+        updateScreen();
+    }
+
     @Override
     public void onSdApiFailure(String requestType, String errMessage) {
         if ("getProgress".equals(requestType)) {
             if (!isPaused && isCallingSD && !isInterrupted)
-                handler.postDelayed(() -> sdApiHelper.sendGetRequest("getProgress", "/sdapi/v1/progress?skip_current_image=false"), 1000);
+                pollProgress(progressPoller.onFailure());
         } else {
+            progressPoller.finish(false);
             isCallingSD = false;
             isCallingAPI = false;
             isInterrupted = false;
@@ -515,12 +549,25 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     public void callSD4Img() {
         showSpinner();
         if (mBound) {
-            String sdBaseUrl = sharedPreferences.getString("sdServerAddress", "");
+            SdBackendPool pool = sdApiHelper.getBackendPool();
+            String selected = pool.select();
+            if (backendUrl == null || (!pool.isHealthy(backendUrl) && !backendUrl.equals(selected))) {
+                backendUrl = selected;
+                getSdModel();
+                return;
+            }
 
             isInterrupted = false;
+            jobToken = new CancellationToken();
             SdParam param = sdApiHelper.getSdCnParm(mCurrentSketch.getCnMode());
 
             Intent intent = new Intent(this, ViewSdImageService.class);
+            if (param.tiled == SdParam.TILED) {
+                mService.setTiledRenderer(new TiledRenderer(sdApiHelper, param, mCurrentSketch, getCacheDir()));
+                intent.putExtra("requestType", "tiledImg2img");
+                startService(intent);
+                return;
+            }
             String requestType;
             JSONObject jsonObject;
             if (param.type.equals(SdParam.SD_MODE_TYPE_TXT2IMG)) {
@@ -530,11 +577,17 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                 requestType = "img2img";
                 jsonObject = sdApiHelper.getControlnetImg2imgJSON(param, mCurrentSketch);
             }
-            mService.setObject(sdBaseUrl, jsonObject);
+            try {
+                SdApiHelper.putBatchSize(jsonObject, Math.max(1, remainGen), sdApiHelper.getMaxBatchSize());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            mService.setObject(backendUrl, jsonObject);
             intent.putExtra("requestType", requestType);
             startService(intent);
+            long delay = progressPoller.start(param.model, param.steps, jsonObject.optInt("n_iter", 1));
             if (!isPaused)
-                handler.postDelayed(() -> sdApiHelper.sendGetRequest("getProgress", "/sdapi/v1/progress?skip_current_image=false"), 2000);
+                pollProgress(delay);
         } else {
             handler.postDelayed(this::callSD4Img, 100);
         }
@@ -548,15 +601,6 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
     public void onSdApiResponse(String requestType, String responseBody) {
         try {
             if ("getSDModel".equals(requestType)) {
-                isCallingAPI = false;
-                JSONArray jsonArray = new JSONArray(responseBody);
-                sdModelList = new HashMap<>();
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    JSONObject joModel = jsonArray.getJSONObject(i);
-                    sdModelList.put(joModel.getString("title"), joModel.getString("sha256"));
-                }
-                setSdModel();
-            } else if ("setSdModel".equals(requestType)) {
                 isCallingAPI = false;
                 callSD4Img();
             } else if ("getProgress".equals(requestType)) {
@@ -566,8 +610,16 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
                 if ((etaRelative > 0) && (progress > 0)) {
                     txtSdStatus.setText(String.format("%d%% completed.", Math.round(progress * 100)));
                 }
+                if (isCallingSD && !jsonObject.isNull("current_image")) {
+                    livePreviewDecoder.decode(jsonObject.getString("current_image"), bm -> runOnUiThread(() -> {
+                        if (isCallingSD && !isPaused) {
+                            sdImage.setImageBitmap(bm);
+                        }
+                    }));
+                }
+                long delay = progressPoller.onProgress(progress, etaRelative);
                 if (!isPaused && isCallingSD && !isInterrupted)
-                    handler.postDelayed(() -> sdApiHelper.sendGetRequest("getProgress", "/sdapi/v1/progress?skip_current_image=false"), 1000);
+                    pollProgress(delay);
             }
         } catch (JSONException e) {
             e.printStackTrace();
@@ -575,9 +627,31 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
         }
     }
 
+    public void onTileDone(int done, int total) {
+        if (isCallingSD || isCallingAPI) {
+            txtSdStatus.setText(String.format("%d of %d tiles completed.", done, total));
+        }
+    }
+
+    private final Runnable progressRequest = () -> {
+        Call call = sdApiHelper.sendRequest("getProgress", backendUrl, "/sdapi/v1/progress?skip_current_image=false", null, "GET");
+        if (jobToken != null) jobToken.track("getProgress", call);
+    };
+
+    private void pollProgress(long delay) {
+        if (delay == ProgressPoller.NO_POLL) return;
+        handler.removeCallbacks(progressRequest);
+        handler.postDelayed(progressRequest, delay);
+    }
+
     public static void addResult(String requestType, String infoTexts) {
+        addResult(requestType, infoTexts, null);
+    }
+
+    public static void addResult(String requestType, String infoTexts, File imageFile) {
         ApiResult r = new ApiResult();
         r.requestType = requestType;
+        r.imageFile = imageFile;
         r.mBitmap = mBitmap.copy(mBitmap.getConfig(), true);
         if (inpaintBitmap != null) {
             r.inpaintBitmap = inpaintBitmap.copy(inpaintBitmap.getConfig(), true);
@@ -598,7 +672,7 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
         txtCount.setText(apiResultList.size() > 0 ? (currentResult + 1) + "/" + apiResultList.size() : "");
 
         if (isCallingSD) {
-            handler.postDelayed(() -> sdApiHelper.sendGetRequest("getProgress", "/sdapi/v1/progress?skip_current_image=false"), 1000);
+            if (progressPoller.isPolling()) pollProgress(1000);
         } else {
             handler.removeCallbacksAndMessages(null);
         }
@@ -612,18 +686,9 @@ public class ViewSdImageActivity extends AppCompatActivity implements SdApiRespo
 
     public static void updateMBitmap() {
         SdParam param = sdApiHelper.getSdCnParm(mCurrentSketch.getCnMode());
-        if (param.inpaintPartial == SdParam.INPAINT_PARTIAL) {
-            inpaintBitmap = mBitmap.copy(mBitmap.getConfig(), true);
-            Bitmap bmEdit = Bitmap.createBitmap(mCurrentSketch.getImgBackground().getWidth(), mCurrentSketch.getImgBackground().getHeight(), Bitmap.Config.ARGB_8888);
-            Canvas canvasEdit = new Canvas(bmEdit);
-            canvasEdit.drawBitmap(mCurrentSketch.getImgBackground(), null, new RectF(0, 0, bmEdit.getWidth(), bmEdit.getHeight()), null);
-            canvasEdit.drawBitmap(mBitmap, null, mCurrentSketch.getRectInpaint(param.sdSize), null);
-            int boundary = (int)Math.round(Math.max(mCurrentSketch.getImgPaint().getWidth(), mCurrentSketch.getImgPaint().getHeight()) / 50d);
-            mBitmap = mCurrentSketch.getImgBgMerge(bmEdit, boundary);
-        } else if (param.type.equals(SdParam.SD_MODE_TYPE_INPAINT)) {
+        if (param.inpaintPartial == SdParam.INPAINT_PARTIAL || param.type.equals(SdParam.SD_MODE_TYPE_INPAINT)) {
             inpaintBitmap = mBitmap.copy(mBitmap.getConfig(), true);
-            int boundary = (int)Math.round(Math.max(mCurrentSketch.getImgPaint().getWidth(), mCurrentSketch.getImgPaint().getHeight()) / 50d);
-            mBitmap = mCurrentSketch.getImgBgMerge(inpaintBitmap, boundary);
+            mBitmap = Utils.mergeInpaintResult(mCurrentSketch, param, mBitmap);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,25 +1,58 @@
 package com.jsoft.diffusionpaint;
 
 import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 
+import com.google.gson.Gson;
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+import com.jsoft.diffusionpaint.dto.SdJob;
 import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.dto.Sketch;
+import com.jsoft.diffusionpaint.helper.CancellationToken;
+import com.jsoft.diffusionpaint.helper.CheckpointScheduler;
+import com.jsoft.diffusionpaint.helper.HttpClientRegistry;
+import com.jsoft.diffusionpaint.helper.PaintDb;
+import com.jsoft.diffusionpaint.helper.RetryInterceptor;
+import com.jsoft.diffusionpaint.helper.SdApiHelper;
+import com.jsoft.diffusionpaint.helper.SdBackendPool;
+import com.jsoft.diffusionpaint.helper.SdRequestBody;
+import com.jsoft.diffusionpaint.helper.SdResponseReader;
+import com.jsoft.diffusionpaint.helper.SdResultCache;
+import com.jsoft.diffusionpaint.helper.TiledRenderer;
+import com.jsoft.diffusionpaint.helper.TiledUpscaler;
 import com.jsoft.diffusionpaint.helper.Utils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -37,15 +70,48 @@ public class ViewSdImageService extends Service {
     private JSONObject requestJSON;
     private static OkHttpClient client;
     private String sdBaseUrl;
+    private TiledRenderer tiledRenderer;
+    private TiledUpscaler tiledUpscaler;
 
+    public static final String ACTION_PROCESS_QUEUE = "com.jsoft.diffusionpaint.PROCESS_QUEUE";
     private static final int FOREGROUND_ID = 1;
+    private static final int MAX_JOB_RETRY = 5;
+    private static final long JOB_RETRY_DELAY = 30000;
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
     private Notification notification;
     private boolean isRunning;
+    private PaintDb db;
+    private ExecutorService queueExecutor;
+    private int activeWorkers;
+    private final Set<String> workerBackends = new HashSet<>();
+    private final CheckpointScheduler scheduler = new CheckpointScheduler();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ConnectivityManager.NetworkCallback networkCallback;
+
     public ViewSdImageService() {
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(900, TimeUnit.SECONDS)
-                .build();
+        this.client = HttpClientRegistry.getClient(10, 900);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        NotificationChannel channel = new NotificationChannel(
+                ViewSdImageActivity.CHANNEL_ID,
+                "Foreground Service Channel",
+                NotificationManager.IMPORTANCE_DEFAULT);
+        channel.setDescription("Channel for foreground service notifications");
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+
+        db = new PaintDb(this);
+        db.resetRunningJobs();
+        queueExecutor = Executors.newCachedThreadPool();
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                handler.post(() -> processQueue());
+            }
+        };
+        getSystemService(ConnectivityManager.class).registerDefaultNetworkCallback(networkCallback);
     }
 
     public class ViewSdImageBinder extends Binder {
@@ -60,6 +126,10 @@ public class ViewSdImageService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_PROCESS_QUEUE.equals(intent.getAction())) {
+            processQueue();
+            return START_STICKY;
+        }
         isRunning = true;
         showForegroundNotification();
         String requestType = intent.getStringExtra("requestType");
@@ -71,12 +141,22 @@ public class ViewSdImageService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (isRunning) {
+        handler.removeCallbacksAndMessages(null);
+        getSystemService(ConnectivityManager.class).unregisterNetworkCallback(networkCallback);
+        queueExecutor.shutdown();
+        if (isRunning || activeWorkers > 0) {
             isRunning = false;
             stopForeground(true);
         }
     }
 
+    private void stopForegroundIfIdle() {
+        synchronized (this) {
+            if (isRunning || activeWorkers > 0) return;
+        }
+        stopForeground(true);
+    }
+
     private void showForegroundNotification() {
         notification = new NotificationCompat.Builder(this, ViewSdImageActivity.CHANNEL_ID)
                 .setContentTitle("API Call Running")
@@ -96,6 +176,14 @@ public class ViewSdImageService extends Service {
         this.activity = activity;
     }
 
+    public void setTiledRenderer(TiledRenderer tiledRenderer) {
+        this.tiledRenderer = tiledRenderer;
+    }
+
+    public void setTiledUpscaler(TiledUpscaler tiledUpscaler) {
+        this.tiledUpscaler = tiledUpscaler;
+    }
+
     public void callSD4Img(String requestType) {
         if (requestType.equals("txt2img")) {
             ViewSdImageActivity.isCallingSD = true;
@@ -103,31 +191,68 @@ public class ViewSdImageService extends Service {
         } else if (requestType.equals("img2img")){
             ViewSdImageActivity.isCallingSD = true;
             sendRequest("img2img", sdBaseUrl, "/sdapi/v1/img2img", requestJSON);
+        } else if (requestType.equals("tiledImg2img")) {
+            ViewSdImageActivity.isCallingSD = true;
+            renderTiles();
+        } else if (requestType.equals("tiledExtraSingleImage")) {
+            ViewSdImageActivity.isCallingAPI = true;
+            upscaleTiles();
         } else {
             ViewSdImageActivity.isCallingAPI = true;
             sendRequest("extraSingleImage", sdBaseUrl, "/sdapi/v1/extra-single-image", requestJSON);
         }
     }
 
+    /* The result cache key hashes the pixels of every image, so it is worked out off the main thread. */
     public void sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject) {
+        queueExecutor.execute(() -> {
+            String cacheKey = null;
+            try {
+                if (!"extraSingleImage".equals(requestType)) {
+                    cacheKey = SdResultCache.getKey(requestType, jsonObject, SdResultCache.getEffectiveModel(jsonObject, baseUrl));
+                }
+                SdImageResponse cached = SdResultCache.getInstance(this).get(cacheKey, getCacheDir());
+                if (cached != null) {
+                    onSdApiResponse(requestType, cached);
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            enqueueRequest(requestType, baseUrl, url, jsonObject, cacheKey);
+        });
+    }
+
+    private void enqueueRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String cacheKey) {
+        CancellationToken token = ViewSdImageActivity.jobToken;
         Request.Builder requestBuilder = new Request.Builder()
-                .url(baseUrl + url);
+                .url(baseUrl + url)
+                .tag(String.class, requestType);
 
-        MediaType JSON = MediaType.get("application/json; charset=utf-8");
-        RequestBody body = RequestBody.create(jsonObject.toString(), JSON);
-        requestBuilder.post(body);
+        SdRequestBody body = new SdRequestBody(jsonObject);
+        requestBuilder.post(token == null ? body : token.trackUpload(body)).tag(SdRequestBody.class, body);
 
         Request request = requestBuilder.build();
 
-        client.newCall(request).enqueue(new Callback() {
+        SdBackendPool.getInstance().begin(baseUrl);
+        Call sdCall = client.newCall(request);
+        if (token != null) token.track(requestType, sdCall);
+        sdCall.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                SdBackendPool.getInstance().end(baseUrl, false);
+                if (call.isCanceled()) {
+                    onSdApiCancelled(requestType);
+                    return;
+                }
                 e.printStackTrace();
                 onSdApiFailure(requestType, e.getMessage());
             }
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) {
+                SdBackendPool.getInstance().end(baseUrl, response.code() < 500);
+                if (response.isSuccessful()) SdBackendPool.getInstance().onRequestDone(baseUrl, jsonObject);
                 try (ResponseBody responseBody = response.body()) {
                     if (!response.isSuccessful()) {
                         onSdApiFailure(requestType, "onResponse Response Code: " + response.code());
@@ -135,10 +260,17 @@ public class ViewSdImageService extends Service {
                     }
 
                     assert responseBody != null;
-                    String responseString = responseBody.string();
-                    onSdApiResponse(requestType, responseString);
+                    SdImageResponse sdResponse = SdResponseReader.readImageResponse(responseBody.source(), getCacheDir());
+                    if (!ViewSdImageActivity.isInterrupted) {
+                        SdResultCache.getInstance(ViewSdImageService.this).put(cacheKey, sdResponse);
+                    }
+                    onSdApiResponse(requestType, sdResponse);
 
                 } catch (Exception e) {
+                    if (call.isCanceled()) {
+                        onSdApiCancelled(requestType);
+                        return;
+                    }
                     e.printStackTrace();
                     onSdApiFailure(requestType, "onResponse Exception: " + e.getMessage());
                 }
@@ -146,32 +278,33 @@ public class ViewSdImageService extends Service {
         });
     }
 
-    private void onSdApiResponse(String requestType, String responseBody) {
+    private void onSdApiResponse(String requestType, SdImageResponse sdResponse) {
         try {
             switch (requestType) {
                 case "txt2img":
                 case "img2img": {
 
                     ViewSdImageActivity.isCallingSD = false;
-                    JSONObject jsonObject = new JSONObject(responseBody);
-                    JSONArray images = jsonObject.getJSONArray("images");
-                    String info = jsonObject.getString("info");
-                    JSONObject infoObject = new JSONObject(info);
-                    JSONArray infotextsArray = infoObject.getJSONArray("infotexts");
-                    String infotexts = infotextsArray.getString(0).replaceAll("\\\\n","\n");
-
-                    if (images.length() > 0) {
-                        ViewSdImageActivity.mBitmap = Utils.base64String2Bitmap((String) images.get(0));
+                    int firstImage = sdResponse.getIndexOfFirstImage();
+                    int count = Math.min(requestJSON.optInt("batch_size", 1) * requestJSON.optInt("n_iter", 1),
+                            sdResponse.images.size() - firstImage);
+                    for (int i = 0; i < count; i++) {
+                        ViewSdImageActivity.mBitmap = BitmapFactory.decodeFile(sdResponse.images.get(firstImage + i).getAbsolutePath());
                         if ("img2img".equals(requestType)) {
                             ViewSdImageActivity.updateMBitmap();
                         }
+                        ViewSdImageActivity.savedImageName = null;
+                        ViewSdImageActivity.addResult(requestType, sdResponse.getInfoTexts(firstImage + i));
                     }
-                    ViewSdImageActivity.savedImageName = null;
-                    ViewSdImageActivity.addResult(requestType, infotexts);
 
+                    ViewSdImageActivity.progressPoller.finish(!ViewSdImageActivity.isInterrupted);
                     if (!ViewSdImageActivity.isInterrupted) {
-                        ViewSdImageActivity.remainGen--;
+                        ViewSdImageActivity.remainGen -= Math.max(count, 1);
                         if (ViewSdImageActivity.remainGen > 0) {
+                            SdApiHelper.putBatchSize(requestJSON, ViewSdImageActivity.remainGen, SdApiHelper.getMaxBatchSize(getSharedPreferences("MyPrefs", MODE_PRIVATE)));
+                            long seed = requestJSON.optLong("seed", -1);
+                            if (seed >= 0) requestJSON.put("seed", seed + count);
+                            ViewSdImageActivity.progressPoller.restart(requestJSON.optInt("n_iter", 1));
                             callSD4Img(requestType);
                             activity.runOnUiThread(() -> activity.updateScreen());
                             break;
@@ -181,15 +314,13 @@ public class ViewSdImageService extends Service {
                     }
                     activity.runOnUiThread(() -> activity.updateScreen());
                     isRunning = false;
-                    stopForeground(true);
+                    stopForegroundIfIdle();
                     break;
                 }
                 case "extraSingleImage": {
 
                     ViewSdImageActivity.isCallingAPI = false;
-                    JSONObject jsonObject = new JSONObject(responseBody);
-                    String imageStr = jsonObject.getString("image");
-                    ViewSdImageActivity.mBitmap = Utils.base64String2Bitmap(imageStr);
+                    ViewSdImageActivity.mBitmap = BitmapFactory.decodeFile(sdResponse.images.get(0).getAbsolutePath());
                     ViewSdImageActivity.updateMBitmap();
 
                     ViewSdImageActivity.savedImageName = null;
@@ -197,19 +328,283 @@ public class ViewSdImageService extends Service {
 
                     activity.runOnUiThread(() -> activity.updateScreen());
                     isRunning = false;
-                    stopForeground(true);
+                    stopForegroundIfIdle();
                     break;
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
             onSdApiFailure(requestType, "onSdApiResponse Exception: " + e.getMessage());
+        } finally {
+            sdResponse.deleteImages();
         }
     }
 
+    /* Runs the tiled render on a worker thread, the tiles themselves go to all servers at once. */
+    private void renderTiles() {
+        TiledRenderer renderer = tiledRenderer;
+        CancellationToken token = ViewSdImageActivity.jobToken;
+        queueExecutor.execute(() -> {
+            try {
+                Bitmap result = renderer.render(token, (done, total) -> activity.runOnUiThread(() -> activity.onTileDone(done, total)));
+                if (result == null) {
+                    onSdApiCancelled("img2img");
+                    return;
+                }
+                ViewSdImageActivity.isCallingSD = false;
+                ViewSdImageActivity.mBitmap = result;
+                ViewSdImageActivity.savedImageName = null;
+                ViewSdImageActivity.addResult("img2img", renderer.getInfoTexts());
+                if (!ViewSdImageActivity.isInterrupted) {
+                    ViewSdImageActivity.remainGen--;
+                    if (ViewSdImageActivity.remainGen > 0) {
+                        callSD4Img("tiledImg2img");
+                        activity.runOnUiThread(() -> activity.updateScreen());
+                        return;
+                    }
+                } else {
+                    ViewSdImageActivity.isInterrupted = false;
+                }
+                activity.runOnUiThread(() -> activity.updateScreen());
+                isRunning = false;
+                stopForegroundIfIdle();
+            } catch (Exception e) {
+                e.printStackTrace();
+                onSdApiFailure("img2img", "Tiled render: " + e.getMessage());
+            }
+        });
+    }
+
+    /* Runs the tiled upscale on a worker thread, the result is a PNG in the cache directory. */
+    private void upscaleTiles() {
+        TiledUpscaler upscaler = tiledUpscaler;
+        queueExecutor.execute(() -> {
+            try {
+                File result = upscaler.upscale((done, total) -> activity.runOnUiThread(() -> activity.onTileDone(done, total)));
+                ViewSdImageActivity.isCallingAPI = false;
+                ViewSdImageActivity.mBitmap = TiledUpscaler.decodePreview(result);
+                ViewSdImageActivity.savedImageName = null;
+                ViewSdImageActivity.addResult("extraSingleImage", null, result);
+
+                activity.runOnUiThread(() -> activity.updateScreen());
+                isRunning = false;
+                stopForegroundIfIdle();
+            } catch (Exception e) {
+                e.printStackTrace();
+                onSdApiFailure("extraSingleImage", "Tiled upscale: " + e.getMessage());
+            }
+        });
+    }
+
+    /* Drops the payload and the remaining generations at once, the images are not needed anymore. */
+    private void onSdApiCancelled(String requestType) {
+        requestJSON = null;
+        ViewSdImageActivity.remainGen = 0;
+        isRunning = false;
+        stopForegroundIfIdle();
+        activity.runOnUiThread(() -> activity.onSdApiCancelled(requestType));
+    }
+
     private void onSdApiFailure(String requestType, String errMsg) {
         isRunning = false;
-        stopForeground(true);
+        stopForegroundIfIdle();
         activity.runOnUiThread(() -> activity.onSdApiFailure(requestType, errMsg));
     }
-}
\ No newline at end of file
+
+    private boolean isNetworkAvailable() {
+        ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+        NetworkCapabilities caps = cm.getNetworkCapabilities(cm.getActiveNetwork());
+        return caps != null && caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+
+    /* Starts one queue worker for each server in the backend pool. */
+    private void processQueue() {
+        handler.removeCallbacksAndMessages(null);
+        int pending = db.getPendingJobCount();
+        if (pending == 0 || !isNetworkAvailable()) {
+            stopQueueIfIdle();
+            return;
+        }
+        SdBackendPool pool = SdBackendPool.getInstance(getSharedPreferences("MyPrefs", Context.MODE_PRIVATE));
+        synchronized (this) {
+            if (activeWorkers == 0) {
+                showQueueNotification(pending);
+            }
+            for (SdBackendPool.Backend backend : pool.getBackends()) {
+                if (workerBackends.add(backend.url)) {
+                    activeWorkers++;
+                    queueExecutor.execute(() -> runQueueWorker(backend.url));
+                }
+            }
+        }
+    }
+
+    /*
+     * The scheduled health checks only run while a result screen is open, so a server that was
+     * marked unhealthy is probed before its worker gives up on it.
+     */
+    private void runQueueWorker(String baseUrl) {
+        SdBackendPool pool = SdBackendPool.getInstance();
+        try {
+            SdJob job;
+            while (isNetworkAvailable() && (pool.isHealthy(baseUrl) || baseUrl.equals(pool.select()) || pool.checkHealth(baseUrl))
+                    && (job = claimJob(baseUrl)) != null) {
+                runJob(job, baseUrl);
+                showQueueNotification(db.getPendingJobCount());
+            }
+        } finally {
+            synchronized (this) {
+                workerBackends.remove(baseUrl);
+                activeWorkers--;
+            }
+            handler.post(this::stopQueueIfIdle);
+        }
+    }
+
+    private SdJob claimJob(String baseUrl) {
+        SdBackendPool pool = SdBackendPool.getInstance();
+        List<String> otherModels = new ArrayList<>();
+        for (SdBackendPool.Backend backend : pool.getBackends()) {
+            String model = pool.getLoadedCheckpoint(backend.url);
+            if (!backend.url.equals(baseUrl) && backend.isHealthy() && model != null) {
+                otherModels.add(model);
+            }
+        }
+        synchronized (db) {
+            long now = System.currentTimeMillis();
+            SdJob job = scheduler.pick(db.getDueJobs(now), pool.getLoadedCheckpoint(baseUrl), otherModels, now);
+            if (job != null) {
+                job.status = SdJob.STATUS_RUNNING;
+                db.updateJob(job);
+            }
+            return job;
+        }
+    }
+
+    private void stopQueueIfIdle() {
+        synchronized (this) {
+            if (activeWorkers > 0) return;
+        }
+        long nextRunTime = db.getNextJobRunTime();
+        if (nextRunTime >= 0 && isNetworkAvailable()) {
+            handler.postDelayed(this::processQueue, Math.max(1000, nextRunTime - System.currentTimeMillis()));
+        }
+        stopForegroundIfIdle();
+        if (nextRunTime < 0 && !isRunning) {
+            stopSelf();
+        }
+    }
+
+    private void showQueueNotification(int pending) {
+        notification = new NotificationCompat.Builder(this, ViewSdImageActivity.CHANNEL_ID)
+                .setContentTitle("Generation Queue Running")
+                .setContentText(pending + " job(s) in queue, " + scheduler.getSavedSwitches() + " model switch(es) saved")
+                .setSmallIcon(R.drawable.ic_magic)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true)
+                .build();
+        startForeground(FOREGROUND_ID, notification);
+    }
+
+    private void runJob(SdJob job, String baseUrl) {
+        SdBackendPool pool = SdBackendPool.getInstance();
+        File payload = new File(job.payloadPath);
+        if (baseUrl == null || !payload.exists()) {
+            job.status = SdJob.STATUS_FAILED;
+            job.errorMessage = baseUrl == null ? "No SD server" : "Payload missing";
+            db.updateJob(job);
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(baseUrl + "/sdapi/v1/" + job.requestType)
+                .tag(String.class, job.requestType)
+                .post(RequestBody.create(payload, JSON))
+                .build();
+        pool.begin(baseUrl);
+        pool.setLoadedCheckpoint(baseUrl, null);
+        boolean ended = false;
+        try (Response response = client.newCall(request).execute()) {
+            pool.end(baseUrl, response.code() < 500);
+            ended = true;
+            ResponseBody responseBody = response.body();
+            if (!response.isSuccessful() || responseBody == null) {
+                retryJob(job, "Response Code: " + response.code(), response.code() >= 500 && canResubmit(null, request));
+                return;
+            }
+            if (job.model != null && !job.model.isEmpty() && !"true".equals(getSharedPreferences("MyPrefs", Context.MODE_PRIVATE).getString("restoreSettingsAfterwards", "false"))) {
+                pool.setLoadedCheckpoint(baseUrl, job.model);
+            }
+            SdImageResponse sdResponse = SdResponseReader.readImageResponse(responseBody.source(), getCacheDir());
+            try {
+                saveJobResults(job, sdResponse);
+            } finally {
+                sdResponse.deleteImages();
+            }
+            payload.delete();
+            db.deleteJob(job.id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (!ended) pool.end(baseUrl, false);
+            retryJob(job, e.getMessage(), canResubmit(e, request));
+        } catch (Exception e) {
+            e.printStackTrace();
+            retryJob(job, e.getMessage(), false);
+        }
+    }
+
+    /*
+     * A job that is still running on the server is not sent again, the busy GPU would only get a
+     * duplicate. When the probe cannot reach the server either, the job stays pending and waits
+     * for the normal backoff.
+     */
+    private static boolean canResubmit(IOException e, Request request) {
+        if (e != null && RetryInterceptor.isConnectFailure(e)) return true;
+        Boolean busy = RetryInterceptor.probeServerBusy(HttpClientRegistry.getProbeClient(), request.url());
+        return !Boolean.TRUE.equals(busy);
+    }
+
+    private void retryJob(SdJob job, String errorMessage, boolean retryable) {
+        job.errorMessage = errorMessage;
+        if (!isNetworkAvailable()) {
+            job.status = SdJob.STATUS_PENDING;
+        } else if (retryable && job.retryCount < MAX_JOB_RETRY) {
+            job.status = SdJob.STATUS_PENDING;
+            job.nextRunTime = System.currentTimeMillis() + (JOB_RETRY_DELAY << job.retryCount);
+            job.retryCount++;
+        } else {
+            job.status = SdJob.STATUS_FAILED;
+            new File(job.payloadPath).delete();
+        }
+        db.updateJob(job);
+    }
+
+    private void saveJobResults(SdJob job, SdImageResponse sdResponse) throws Exception {
+        SdParam param = new Gson().fromJson(job.sdParam, SdParam.class);
+        Sketch sketch = null;
+        if ("img2img".equals(job.requestType) && job.sketchId >= 0) {
+            sketch = db.getSketch(job.sketchId);
+            if (sketch != null) {
+                sketch.setCnMode(job.cnMode);
+                Utils.prepareSketchForMode(sketch, param);
+            }
+        }
+        SimpleDateFormat exifFormat = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.getDefault());
+        // per call, several queue workers save results at once
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyMMddHHmmss", Locale.getDefault());
+        int firstImage = sdResponse.getIndexOfFirstImage();
+        for (int i = firstImage; i < sdResponse.images.size(); i++) {
+            String infotexts = sdResponse.getInfoTexts(i);
+            if (i > firstImage && infotexts == null) break;
+            Bitmap bitmap = BitmapFactory.decodeFile(sdResponse.images.get(i).getAbsolutePath());
+            if (bitmap == null) continue;
+            if (sketch != null) {
+                bitmap = Utils.mergeInpaintResult(sketch, param, bitmap);
+            }
+            JSONObject jsonExif = new JSONObject();
+            jsonExif.put("UserComment", infotexts);
+            jsonExif.put("DateTimeOriginal", exifFormat.format(new Date()));
+            String fileName = "sdsketch_" + (job.sketchId >= 0 ? (job.sketchId + "_") : "") + dateFormat.format(new Date()) + "_" + (i - firstImage) + ".jpg";
+            Utils.saveBitmapToExternalStorage(this, bitmap, fileName, jsonExif.toString());
+        }
+    }
+}
@@ -2,10 +2,13 @@ package com.jsoft.diffusionpaint.dto;
 
 import android.graphics.Bitmap;
 
+import java.io.File;
+
 public class ApiResult {
     public String requestType;
     public String savedImageName;
     public Bitmap mBitmap;
     public Bitmap inpaintBitmap;
     public String infoTexts;
+    public File imageFile; //full size image, when too large for mBitmap
 }
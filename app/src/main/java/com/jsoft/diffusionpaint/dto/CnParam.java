@@ -14,4 +14,16 @@ public class CnParam {
     public static final String CN_RESIZE_MODE_RESIZE = "Just Resize";
     public static final String CN_RESIZE_MODE_CROP = "Crop and Resize";
     public static final String CN_RESIZE_MODE_FILL = "Resize and Fill";
+    private static final String[] LINE_MODULES = {"scribble", "lineart", "canny", "mlsd"};
+
+    /* True for the modules working on lines, or a line model fed without preprocessor. */
+    public boolean isLineBased() {
+        String module = cnModule == null ? "" : cnModule.toLowerCase();
+        String model = cnModelKey == null ? "" : cnModelKey.toLowerCase();
+        for (String lineModule : LINE_MODULES) {
+            if (module.startsWith(lineModule)) return true;
+            if (("none".equals(module) || module.isEmpty()) && model.contains(lineModule)) return true;
+        }
+        return false;
+    }
 }
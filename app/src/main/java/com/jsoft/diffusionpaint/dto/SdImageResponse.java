@@ -0,0 +1,45 @@
+package com.jsoft.diffusionpaint.dto;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SdImageResponse {
+    public List<File> images = new ArrayList<>();
+    public String info;
+    private JSONArray infotexts;
+
+    public String getInfoTexts(int index) {
+        if (info == null) return null;
+        try {
+            if (infotexts == null) {
+                infotexts = new JSONObject(info).getJSONArray("infotexts");
+            }
+            if (index >= infotexts.length()) return null;
+            return infotexts.getString(index).replaceAll("\\\\n","\n");
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public int getIndexOfFirstImage() {
+        if (info == null) return 0;
+        try {
+            return new JSONObject(info).optInt("index_of_first_image", 0);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    public void deleteImages() {
+        for (File f : images) {
+            f.delete();
+        }
+    }
+}
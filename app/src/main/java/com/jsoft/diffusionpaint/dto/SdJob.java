@@ -0,0 +1,24 @@
+package com.jsoft.diffusionpaint.dto;
+
+public class SdJob {
+    public long id = -1;
+    public int sketchId;
+    public String cnMode;
+    public String requestType;
+    public String payloadPath;
+    public String sdParam;
+    public String model;
+    public int priority = PRIORITY_NORMAL;
+    public String status = STATUS_PENDING;
+    public int retryCount;
+    public long nextRunTime;
+    public String errorMessage;
+    public long createTime;
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+}
@@ -13,6 +13,7 @@ public class SdParam {
     public double cfgScale;
     public int inpaintFill; //for inpaint, Original / Noise
     public int inpaintPartial = 0;
+    public int tiled = 0; //for img2img, render the whole canvas in sdSize tiles
     public int sdSize;
     public int clipSkip;
     public String model;
@@ -35,6 +36,7 @@ public class SdParam {
     public static final int SD_INPAINT_FILL_NOISE = 2;
     public static final int INPAINT_FULL = 0;
     public static final int INPAINT_PARTIAL = 1;
+    public static final int TILED = 1;
 
     public static final List<String> modeKeyList = new ArrayList<>(Arrays.asList(
             "\"name\":\"Custom Mode\"",
@@ -61,6 +63,7 @@ public class SdParam {
             "\"inpaintFill\":2",
             "\"inpaintFill\":3",
             "\"inpaintPartial\":1",
+            "\"tiled\":1",
             "\"sdSize\":768",
             "\"sdSize\":1024",
             "\"sdSize\":1280",
@@ -11,6 +11,7 @@ import android.graphics.RectF;
 import com.jsoft.diffusionpaint.helper.Utils;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -35,12 +36,16 @@ public class Sketch implements Serializable {
 
     private String exif;
     private List<Sketch> children;
+    private transient Bitmap imgBgRef;
+    private transient Bitmap[] imgBgRefSources;
+    private transient int[] imgBgRefGenerations;
     public static final int customModeCount = 10;
     public static final String CN_MODE_IMG_SCRIBBLE = "scribble";
     public static final String CN_MODE_TXT = "txt";
     public static final String CN_MODE_TXT_SDXL = "txtSDXL";
     public static final String CN_MODE_TXT_SDXL_TURBO = "txtSDXLTurbo";
     public static final String CN_MODE_IMG_SDXL = "imgSDXL";
+    public static final String CN_MODE_IMG_TILED = "imgTiled";
     public static final String CN_MODE_TXT_CANNY = "txtCanny";
     public static final String CN_MODE_TXT_SCRIBBLE = "txtScribble";
     public static final String CN_MODE_INPAINT = "inpaintNoise";
@@ -73,6 +78,7 @@ public class Sketch implements Serializable {
         json.put(CN_MODE_TXT, "{\"type\":\"txt2img\"}");
         json.put(CN_MODE_TXT_SDXL, "{\"type\":\"txt2img\", \"sdSize\":1280}");
         json.put(CN_MODE_IMG_SDXL, "{\"type\":\"img2img\", \"denoise\":0.5, \"model\":\"sdxlBase\", \"baseImage\":\"background\", \"sdSize\":1280}");
+        json.put(CN_MODE_IMG_TILED, "{\"type\":\"img2img\", \"denoise\":0.35, \"baseImage\":\"background\", \"tiled\":1, \"cn\":[{\"cnInputImage\":\"background\", \"cnModelKey\":\"cnTileModel\", \"cnModule\":\"tile_resample\", \"cnWeight\":1.0}]}");
         json.put(CN_MODE_TXT_SDXL_TURBO, "{\"type\":\"txt2img\", \"sdSize\":768, \"cfgScale\":2.0, \"steps\":5, \"sampler\":\"DPM++ SDE Karras\"}");
         json.put(CN_MODE_INPAINT, "{\"baseImage\":\"background\", \"denoise\":1.0, \"inpaintFill\":2, \"type\":\"inpaint\"}");
         json.put(CN_MODE_INPAINT_SKETCH, "{\"baseImage\":\"sketch\", \"denoise\":0.5, \"inpaintFill\":1, \"type\":\"inpaint\"}");
@@ -97,6 +103,7 @@ public class Sketch implements Serializable {
         cnMode.put("SDXL txt2img", CN_MODE_TXT_SDXL);
         cnMode.put("SDXL Turbo txt2img", CN_MODE_TXT_SDXL_TURBO);
         cnMode.put("SDXL Refiner", CN_MODE_IMG_SDXL);
+        cnMode.put("Tiled Detail (full resolution)", CN_MODE_IMG_TILED);
         cnMode.put("Inpainting (background)", CN_MODE_INPAINT);
         cnMode.put("Inpainting (sketch)", CN_MODE_INPAINT_SKETCH);
         cnMode.put("Partial Inpainting (background)", CN_MODE_INPAINT_PARTIAL);
@@ -170,6 +177,26 @@ public class Sketch implements Serializable {
         this.cnMode = cnMode;
     }
 
+    /* Copies the fields but shares the bitmaps, which are replaced rather than drawn on. */
+    public Sketch copy() {
+        Sketch s = new Sketch();
+        s.createDate = createDate;
+        s.lastUpdateDate = lastUpdateDate;
+        s.id = id;
+        s.parentId = parentId;
+        s.prompt = prompt;
+        s.negPrompt = negPrompt;
+        s.imgPreview = imgPreview;
+        s.imgBackground = imgBackground;
+        s.imgPaint = imgPaint;
+        s.imgInpaintMask = imgInpaintMask;
+        s.imgReference = imgReference;
+        s.cnMode = cnMode;
+        s.style = style;
+        s.exif = exif;
+        return s;
+    }
+
     public Date getCreateDate() {
         return createDate;
     }
@@ -280,8 +307,20 @@ public class Sketch implements Serializable {
         return paintBitmap;
     }
 
+    /* The merge is kept until the background, paint or reference is replaced or drawn on. */
     public Bitmap getImgBgRef() {
-        return getImgBgMerge(imgReference, 0);
+        Bitmap[] sources = {imgBackground, imgPaint, imgReference};
+        int[] generations = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            generations[i] = sources[i] == null ? 0 : sources[i].getGenerationId();
+        }
+        if (imgBgRef == null || imgBgRefSources == null || !Arrays.equals(generations, imgBgRefGenerations)
+                || sources[0] != imgBgRefSources[0] || sources[1] != imgBgRefSources[1] || sources[2] != imgBgRefSources[2]) {
+            imgBgRef = getImgBgMerge(imgReference, 0);
+            imgBgRefSources = sources;
+            imgBgRefGenerations = generations;
+        }
+        return imgBgRef;
     }
 
     public Bitmap getImgBgMerge(Bitmap bmMerge, int boundary) {
@@ -0,0 +1,84 @@
+package com.jsoft.diffusionpaint.helper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/*
+ * The OkHttp calls of one generation, the latest call of each request type. Cancelling aborts
+ * them at once, including an upload still being written, and calls tracked afterwards are
+ * cancelled as soon as they are tracked. A request body wrapped by trackUpload tells whether
+ * the server has received the whole request, in which case it may be better to interrupt the
+ * generation and keep the partial result.
+ */
+public class CancellationToken {
+    private final Map<String, Call> calls = new LinkedHashMap<>();
+    private boolean cancelled = false;
+    private boolean uploaded = false;
+
+    public synchronized Call track(String key, Call call) {
+        if (call == null) return null;
+        if (cancelled) {
+            call.cancel();
+        } else {
+            calls.put(key, call);
+        }
+        return call;
+    }
+
+    public RequestBody trackUpload(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() throws IOException {
+                return body.contentLength();
+            }
+
+            @Override
+            public void writeTo(@NonNull BufferedSink sink) throws IOException {
+                setUploaded(false);
+                body.writeTo(sink);
+                sink.flush();
+                setUploaded(true);
+            }
+        };
+    }
+
+    private synchronized void setUploaded(boolean uploaded) {
+        this.uploaded = uploaded;
+    }
+
+    public synchronized boolean isUploaded() {
+        return uploaded;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        List<Call> toCancel;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            toCancel = new ArrayList<>(calls.values());
+            calls.clear();
+        }
+        for (Call call : toCancel) {
+            call.cancel();
+        }
+    }
+}
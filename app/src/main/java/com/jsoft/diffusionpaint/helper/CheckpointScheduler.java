@@ -0,0 +1,62 @@
+package com.jsoft.diffusionpaint.helper;
+
+import com.jsoft.diffusionpaint.dto.SdJob;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Picks the next queued job for a server so that jobs for the checkpoint already loaded there
+ * run first, which saves the server from reloading model weights between jobs. Priority still
+ * wins, and a job is not passed over more than MAX_BYPASS times or for longer than MAX_WAIT.
+ */
+public class CheckpointScheduler {
+    public static final int MAX_BYPASS = 3;
+    public static final long MAX_WAIT = 10 * 60 * 1000;
+    private final Map<Long, Integer> bypassCount = new HashMap<>();
+    private long savedSwitches;
+
+    /**
+     * @param dueJobs jobs ready to run, ordered by priority and then age
+     * @param loadedModel checkpoint loaded on the server asking for work, null if unknown
+     * @param otherLoadedModels checkpoints loaded on the other healthy servers
+     */
+    public synchronized SdJob pick(List<SdJob> dueJobs, String loadedModel, Collection<String> otherLoadedModels, long now) {
+        if (dueJobs.isEmpty()) return null;
+        SdJob head = dueJobs.get(0);
+        SdJob picked = null;
+        Integer headBypass = bypassCount.get(head.id);
+        boolean headStarving = (headBypass != null && headBypass >= MAX_BYPASS) || now - head.createTime > MAX_WAIT;
+
+        if (!headStarving) {
+            SdJob freeModel = null;
+            for (SdJob job : dueJobs) {
+                if (job.priority != head.priority) break;
+                if (loadedModel != null && loadedModel.equals(job.model)) {
+                    picked = job;
+                    break;
+                }
+                if (freeModel == null && !otherLoadedModels.contains(job.model)) {
+                    freeModel = job;
+                }
+            }
+            if (picked == null) picked = freeModel;
+        }
+        if (picked == null) picked = head;
+
+        if (picked != head) {
+            bypassCount.put(head.id, headBypass == null ? 1 : headBypass + 1);
+            if (loadedModel != null && loadedModel.equals(picked.model) && !loadedModel.equals(head.model)) {
+                savedSwitches++;
+            }
+        }
+        bypassCount.remove(picked.id);
+        return picked;
+    }
+
+    public synchronized long getSavedSwitches() {
+        return savedSwitches;
+    }
+}
@@ -0,0 +1,195 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+ * Keeps the base64 encoding of the bitmaps sent to the SD server, so an unchanged image is not
+ * compressed again when it is used by several ControlNet units or the same mode is run again.
+ * Entries are keyed by a hash of the pixels plus format and quality, which also matches a bitmap
+ * rebuilt with the same content. The pixel hash of a bitmap is remembered until its generation
+ * ID changes. The cache is bounded by the size of the encodings and evicts the least recently
+ * used first. writeBase64 streams a missing encoding into the request and only keeps a copy
+ * of it when it is small enough to be cached.
+ */
+public class EncodedImageCache {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    private static EncodedImageCache instance;
+
+    private final long maxBytes;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Bitmap, long[]> contentHashes = new WeakHashMap<>();
+
+    public EncodedImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized EncodedImageCache getInstance() {
+        if (instance == null) {
+            instance = new EncodedImageCache(DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /* Writes a bitmap in another way than Bitmap.compress, the name tells the encodings apart. */
+    public interface Encoder {
+        String getName();
+
+        void encode(Bitmap bitmap, OutputStream out) throws IOException;
+    }
+
+    /* Returns the base64 encoding without line breaks. */
+    public byte[] getBase64(Bitmap bitmap, Bitmap.CompressFormat format, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBase64(bitmap, format, quality, out);
+        return out.toByteArray();
+    }
+
+    public byte[] getBase64(Bitmap bitmap, Encoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBase64(bitmap, encoder, out);
+        return out.toByteArray();
+    }
+
+    /*
+     * Writes the base64 encoding without line breaks to out, which is left open. Returns true
+     * when the encoding came from the cache, false when it was encoded while written.
+     */
+    public boolean writeBase64(Bitmap bitmap, Bitmap.CompressFormat format, int quality, OutputStream out) throws IOException {
+        return writeBase64(bitmap, format.name() + "/" + quality, (bm, o) -> bm.compress(format, quality, o), out);
+    }
+
+    public boolean writeBase64(Bitmap bitmap, Encoder encoder, OutputStream out) throws IOException {
+        return writeBase64(bitmap, encoder.getName(), encoder::encode, out);
+    }
+
+    private boolean writeBase64(Bitmap bitmap, String encoding, BitmapWriter writer, OutputStream out) throws IOException {
+        String key = getContentHash(bitmap) + "/" + encoding;
+        byte[] cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        if (cached != null) {
+            out.write(cached);
+            return true;
+        }
+
+        CopyingStream copy = new CopyingStream(out, maxBytes / 2);
+        Base64OutputStream base64Stream = new Base64OutputStream(copy, Base64.NO_WRAP);
+        writer.write(bitmap, base64Stream);
+        base64Stream.close();
+        byte[] encoded = copy.getCopy();
+        if (encoded != null) put(key, encoded);
+        return false;
+    }
+
+    private interface BitmapWriter {
+        void write(Bitmap bitmap, OutputStream out) throws IOException;
+    }
+
+    /* Passes the bytes on to out and keeps a copy until there are more than limit of them. */
+    private static class CopyingStream extends OutputStream {
+        private final OutputStream out;
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CopyingStream(OutputStream out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                if (copy.size() > limit) copy = null;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                if (copy.size() > limit) copy = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            // the request body goes on after the image
+        }
+
+        byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    private synchronized void put(String key, byte[] encoded) {
+        if (encoded.length > maxBytes / 2) return;
+        byte[] old = entries.put(key, encoded);
+        if (old != null) size -= old.length;
+        size += encoded.length;
+        Iterator<byte[]> iterator = entries.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            size -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    String getContentHash(Bitmap bitmap) {
+        int generationId = bitmap.getGenerationId();
+        synchronized (this) {
+            long[] known = contentHashes.get(bitmap);
+            if (known != null && known[0] == generationId) {
+                return Long.toHexString(known[1]) + "-" + Long.toHexString(known[2]);
+            }
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        long h1 = 1125899906842597L ^ width;
+        long h2 = 0x9E3779B97F4A7C15L ^ height;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                h1 = 31 * h1 + pixel;
+                h2 = (h2 ^ pixel) * 0x100000001B3L;
+            }
+        }
+        synchronized (this) {
+            contentHashes.put(bitmap, new long[] {generationId, h1, h2});
+        }
+        return Long.toHexString(h1) + "-" + Long.toHexString(h2);
+    }
+
+    public synchronized long getSize() { return size; }
+
+    public synchronized long getHitCount() { return hitCount; }
+
+    public synchronized long getMissCount() { return missCount; }
+
+    public synchronized void clear() {
+        entries.clear();
+        contentHashes.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,87 @@
+package com.jsoft.diffusionpaint.helper;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/*
+ * App-wide OkHttpClient. Every client handed out is derived from the same base client with
+ * newBuilder(), so they all share one connection pool and dispatcher and keep-alive
+ * connections to the SD server survive screen changes. Transient failures are retried by
+ * RetryInterceptor and the timing of every call is recorded in NetworkStats.
+ */
+public class HttpClientRegistry {
+    private static final ConnectionPool connectionPool = new ConnectionPool(5, 5, TimeUnit.MINUTES);
+    private static final AtomicLong connectionsAcquired = new AtomicLong();
+    private static final AtomicLong connectionsCreated = new AtomicLong();
+    private static final Map<String, OkHttpClient> clients = new HashMap<>();
+    private static OkHttpClient baseClient;
+    private static OkHttpClient probeClient;
+
+    public static synchronized OkHttpClient getBaseClient() {
+        if (baseClient == null) {
+            baseClient = new OkHttpClient.Builder()
+                    .connectionPool(connectionPool)
+                    .eventListenerFactory(NetworkStats.getEventListenerFactory())
+                    .addInterceptor(new RetryInterceptor(getProbeClient()))
+                    .build();
+        }
+        return baseClient;
+    }
+
+    /* Short timeouts and no retries, for asking a server whether it is busy. */
+    public static synchronized OkHttpClient getProbeClient() {
+        if (probeClient == null) {
+            probeClient = new OkHttpClient.Builder()
+                    .connectionPool(connectionPool)
+                    .connectTimeout(3, TimeUnit.SECONDS)
+                    .readTimeout(5, TimeUnit.SECONDS)
+                    .build();
+        }
+        return probeClient;
+    }
+
+    public static synchronized OkHttpClient getClient(long connectTimeout, long readTimeout) {
+        String key = connectTimeout + "/" + readTimeout;
+        OkHttpClient client = clients.get(key);
+        if (client == null) {
+            client = getBaseClient().newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+                    .readTimeout(readTimeout, TimeUnit.SECONDS)
+                    .build();
+            clients.put(key, client);
+        }
+        return client;
+    }
+
+    public static int getIdleConnectionCount() { return connectionPool.idleConnectionCount(); }
+
+    public static int getActiveConnectionCount() {
+        return connectionPool.connectionCount() - connectionPool.idleConnectionCount();
+    }
+
+    public static long getConnectionsAcquired() { return connectionsAcquired.get(); }
+
+    public static long getConnectionsCreated() { return connectionsCreated.get(); }
+
+    public static double getReuseRatio() {
+        long acquired = connectionsAcquired.get();
+        if (acquired == 0) return 0d;
+        return Math.max(0d, (double) (acquired - connectionsCreated.get()) / acquired);
+    }
+
+    public static String getPoolStats() {
+        return String.format(Locale.US, "idle=%d, active=%d, acquired=%d, created=%d, reuse=%.0f%%",
+                getIdleConnectionCount(), getActiveConnectionCount(), getConnectionsAcquired(),
+                getConnectionsCreated(), getReuseRatio() * 100);
+    }
+
+    static void onConnectionCreated() { connectionsCreated.incrementAndGet(); }
+
+    static void onConnectionAcquired() { connectionsAcquired.incrementAndGet(); }
+}
@@ -0,0 +1,157 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/*
+ * A bitmap placed in a request JSONObject. It is only compressed and base64 encoded when
+ * SdRequestBody writes it, so the payload never holds the encoded image as a String. The
+ * encoding is taken from EncodedImageCache when the same image was sent before. The images
+ * of a generation are compressed as UploadCodecPolicy chooses for the current link, masks and
+ * line drawings are sent as grayscale PNGs written by PngEncoder.
+ */
+public class ImagePart {
+    public static final String PNG_1BIT = "png-1bit";
+    public static final String PNG_GRAY = "png-gray";
+    public static final String PNG_LINE_ART = "png-lineart";
+    /* A line drawing pixel with any channel below this is a stroke. */
+    private static final int LINE_ART_PAPER_LEVEL = 192;
+
+    private final Bitmap bitmap;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+    private final String codecName;
+    private final GrayPngEncoder grayEncoder;
+
+    public ImagePart(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
+        this.bitmap = bitmap;
+        this.format = format;
+        this.quality = quality;
+        this.codecName = format == Bitmap.CompressFormat.PNG ? UploadCodecPolicy.PNG : format.name().toLowerCase(Locale.US) + "/" + quality;
+        this.grayEncoder = null;
+    }
+
+    private ImagePart(Bitmap bitmap, UploadCodecPolicy.Codec codec) {
+        this.bitmap = bitmap;
+        this.format = codec.getFormat();
+        this.quality = codec.quality;
+        this.codecName = codec.toString();
+        this.grayEncoder = null;
+    }
+
+    private ImagePart(Bitmap bitmap, GrayPngEncoder grayEncoder) {
+        this.bitmap = bitmap;
+        this.format = Bitmap.CompressFormat.PNG;
+        this.quality = 100;
+        this.codecName = grayEncoder.getName();
+        this.grayEncoder = grayEncoder;
+    }
+
+    public static ImagePart jpg(Bitmap bm) {
+        return new ImagePart(bm, Bitmap.CompressFormat.JPEG, 90);
+    }
+
+    public static ImagePart png(Bitmap bm) {
+        return new ImagePart(bm, Bitmap.CompressFormat.PNG, 100);
+    }
+
+    /* Compressed as chosen by UploadCodecPolicy for the current upload throughput. */
+    public static ImagePart forUpload(Bitmap bm, int input) {
+        return new ImagePart(bm, UploadCodecPolicy.choose(input));
+    }
+
+    /* A 1 bit PNG for a hard black and white mask, an 8 bit gray PNG when its edges are soft. */
+    public static ImagePart mask(Bitmap bm) {
+        if (bm == null) return png(null);
+        byte[] gray = getGray(bm);
+        return new ImagePart(bm, new GrayPngEncoder(PngEncoder.isBlackAndWhite(gray) ? 1 : 8, false));
+    }
+
+    /*
+     * The input of a line based ControlNet module. A drawing that is nearly all plain paper and
+     * strokes is turned into black strokes on white, anything else (a photo under the sketch) is
+     * sent as it is. Every pixel noticeably different from white paper is a stroke, whatever its
+     * colour, so green or yellow strokes are kept. The result is an 8 bit gray PNG rather than a
+     * 1 bit one, because ControlNet turns a decoded 1 bit image into 0 and 1 values, not 0 and 255.
+     */
+    public static ImagePart lineArt(Bitmap bm) {
+        if (bm == null || !PngEncoder.isLineArt(getGray(bm))) {
+            return forUpload(bm, UploadCodecPolicy.INPUT_CONTROL);
+        }
+        return new ImagePart(bm, new GrayPngEncoder(8, true));
+    }
+
+    public Bitmap getBitmap() { return bitmap; }
+
+    public Bitmap.CompressFormat getFormat() { return format; }
+
+    public int getQuality() { return quality; }
+
+    public String getCodecName() { return codecName; }
+
+    /* Returns false when the image had to be encoded while written. */
+    public boolean writeBase64(OutputStream out) throws IOException {
+        if (bitmap == null) return true;
+        if (grayEncoder != null) {
+            return EncodedImageCache.getInstance().writeBase64(bitmap, grayEncoder, out);
+        }
+        return EncodedImageCache.getInstance().writeBase64(bitmap, format, quality, out);
+    }
+
+    private byte[] getBase64() throws IOException {
+        if (grayEncoder != null) {
+            return EncodedImageCache.getInstance().getBase64(bitmap, grayEncoder);
+        }
+        return EncodedImageCache.getInstance().getBase64(bitmap, format, quality);
+    }
+
+    @Override
+    public String toString() {
+        if (bitmap == null) return "";
+        if (grayEncoder == null) return Utils.bitmap2Base64String(bitmap, format, quality);
+        try {
+            return new String(getBase64(), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return "";
+    }
+
+    private static byte[] getGray(Bitmap bm) {
+        int[] pixels = new int[bm.getWidth() * bm.getHeight()];
+        bm.getPixels(pixels, 0, bm.getWidth(), 0, 0, bm.getWidth(), bm.getHeight());
+        return PngEncoder.toGray(pixels);
+    }
+
+    private static class GrayPngEncoder implements EncodedImageCache.Encoder {
+        private final int bitDepth;
+        private final boolean threshold;
+
+        GrayPngEncoder(int bitDepth, boolean threshold) {
+            this.bitDepth = bitDepth;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String getName() {
+            return threshold ? PNG_LINE_ART : bitDepth == 1 ? PNG_1BIT : PNG_GRAY;
+        }
+
+        @Override
+        public void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            byte[] gray;
+            if (threshold) {
+                int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+                bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                gray = PngEncoder.toInk(pixels, LINE_ART_PAPER_LEVEL);
+            } else {
+                gray = getGray(bitmap);
+            }
+            PngEncoder.writeGray(out, gray, bitmap.getWidth(), bitmap.getHeight(), bitDepth);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/*
+ * Decodes the current_image of /sdapi/v1/progress on a background thread. The preview is
+ * downsampled to maxSize and decoded into one of two reused bitmaps, one being shown while
+ * the other is decoded into, so polling does not allocate a new bitmap every time.
+ */
+public class LivePreviewDecoder {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Bitmap[] buffers = new Bitmap[2];
+    private int current = 0;
+    private final int maxSize;
+    private boolean decoding = false;
+
+    public LivePreviewDecoder(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /* Skips the image if the previous one is still being decoded. */
+    public synchronized void decode(String base64Image, Consumer<Bitmap> callback) {
+        if (decoding || base64Image == null || base64Image.isEmpty()) return;
+        decoding = true;
+        executor.execute(() -> {
+            try {
+                Bitmap bitmap = decode(base64Image);
+                if (bitmap != null) callback.accept(bitmap);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    decoding = false;
+                }
+            }
+        });
+    }
+
+    private Bitmap decode(String base64Image) {
+        int comma = base64Image.indexOf(',');
+        byte[] bytes = Base64.decode(comma >= 0 && comma < 64 ? base64Image.substring(comma + 1) : base64Image, Base64.DEFAULT);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= maxSize) {
+            sampleSize *= 2;
+        }
+
+        int next;
+        synchronized (this) {
+            next = 1 - current;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = buffers[next];
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+        if (bitmap == null) return null;
+        synchronized (this) {
+            buffers[next] = bitmap;
+            current = next;
+        }
+        return bitmap;
+    }
+
+    public synchronized void reset() {
+        buffers[0] = null;
+        buffers[1] = null;
+    }
+}
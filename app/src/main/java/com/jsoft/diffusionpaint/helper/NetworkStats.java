@@ -0,0 +1,338 @@
+package com.jsoft.diffusionpaint.helper;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/*
+ * Timing of the SD calls, recorded by an OkHttp EventListener and grouped by request type. The
+ * request type is the String tag of the request, or the last segment of the URL path when the
+ * request has no tag. For each type the DNS, connect, TLS, upload, time to first byte (the time
+ * the server takes after the upload, so queue and GPU time) and download times are kept in
+ * histograms, together with the bytes sent and received and the codecs of the uploaded images.
+ * Upload times also feed the throughput estimate of UploadCodecPolicy.
+ */
+public class NetworkStats {
+    public static final String DNS = "dns";
+    public static final String CONNECT = "connect";
+    public static final String TLS = "tls";
+    public static final String UPLOAD = "upload";
+    public static final String TTFB = "ttfb";
+    public static final String DOWNLOAD = "download";
+    public static final String TOTAL = "total";
+    private static final String[] TIMINGS = {DNS, CONNECT, TLS, UPLOAD, TTFB, DOWNLOAD, TOTAL};
+    private static final long[] BUCKET_MS = {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000};
+
+    private static final Map<String, RequestTypeStats> stats = new TreeMap<>();
+
+    public static class Histogram {
+        private final long[] counts = new long[BUCKET_MS.length + 1];
+        private long count;
+        private long sum;
+        private long max;
+
+        synchronized void add(long ms) {
+            int i = 0;
+            while (i < BUCKET_MS.length && ms > BUCKET_MS[i]) i++;
+            counts[i]++;
+            count++;
+            sum += ms;
+            max = Math.max(max, ms);
+        }
+
+        public synchronized long getCount() { return count; }
+
+        public synchronized long getMean() { return count == 0 ? 0 : sum / count; }
+
+        public synchronized long getMax() { return max; }
+
+        /* The upper bound of the bucket holding the percentile, or the max for the last bucket. */
+        public synchronized long getPercentile(double p) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i < BUCKET_MS.length ? Math.min(BUCKET_MS[i], max) : max;
+            }
+            return max;
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("mean", getMean());
+            json.put("p50", getPercentile(0.5));
+            json.put("p90", getPercentile(0.9));
+            json.put("p99", getPercentile(0.99));
+            json.put("max", max);
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < counts.length; i++) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("le", i < BUCKET_MS.length ? String.valueOf(BUCKET_MS[i]) : "inf");
+                bucket.put("count", counts[i]);
+                buckets.put(bucket);
+            }
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+
+    public static class RequestTypeStats {
+        private final Map<String, Histogram> timings = new TreeMap<>();
+        private final Map<String, Long> imageCodecs = new TreeMap<>();
+        private long calls;
+        private long failures;
+        private long bytesSent;
+        private long bytesReceived;
+
+        RequestTypeStats() {
+            for (String timing : TIMINGS) timings.put(timing, new Histogram());
+        }
+
+        public Histogram getTiming(String timing) { return timings.get(timing); }
+
+        public synchronized long getCalls() { return calls; }
+
+        public synchronized long getFailures() { return failures; }
+
+        public synchronized long getBytesSent() { return bytesSent; }
+
+        public synchronized long getBytesReceived() { return bytesReceived; }
+
+        public synchronized Map<String, Long> getImageCodecs() { return new TreeMap<>(imageCodecs); }
+
+        synchronized void onImageCodecs(List<String> codecs) {
+            for (String codec : codecs) {
+                Long count = imageCodecs.get(codec);
+                imageCodecs.put(codec, count == null ? 1 : count + 1);
+            }
+        }
+
+        synchronized void onCallEnd(boolean failed, long sent, long received) {
+            calls++;
+            if (failed) failures++;
+            bytesSent += sent;
+            bytesReceived += received;
+        }
+    }
+
+    public static EventListener.Factory getEventListenerFactory() {
+        return call -> new TimingListener();
+    }
+
+    public static synchronized RequestTypeStats getStats(String requestType) {
+        RequestTypeStats s = stats.get(requestType);
+        if (s == null) {
+            s = new RequestTypeStats();
+            stats.put(requestType, s);
+        }
+        return s;
+    }
+
+    public static synchronized void reset() {
+        stats.clear();
+    }
+
+    public static synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, RequestTypeStats> entry : stats.entrySet()) {
+                RequestTypeStats s = entry.getValue();
+                JSONObject type = new JSONObject();
+                type.put("calls", s.getCalls());
+                type.put("failures", s.getFailures());
+                type.put("bytesSent", s.getBytesSent());
+                type.put("bytesReceived", s.getBytesReceived());
+                type.put("imageCodecs", new JSONObject(s.getImageCodecs()));
+                for (String timing : TIMINGS) {
+                    type.put(timing, s.getTiming(timing).toJSON());
+                }
+                json.put(entry.getKey(), type);
+            }
+            json.put("uploadThroughput", Math.round(UploadCodecPolicy.getThroughput()));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    public static synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, RequestTypeStats> entry : stats.entrySet()) {
+            RequestTypeStats s = entry.getValue();
+            sb.append(String.format(Locale.US, "%s: %d calls, %d failed, %d KB up, %d KB down\n",
+                    entry.getKey(), s.getCalls(), s.getFailures(), s.getBytesSent() / 1024, s.getBytesReceived() / 1024));
+            for (String timing : TIMINGS) {
+                Histogram h = s.getTiming(timing);
+                if (h.getCount() == 0) continue;
+                sb.append(String.format(Locale.US, "  %-8s p50 %d ms, p90 %d ms, max %d ms\n",
+                        timing, h.getPercentile(0.5), h.getPercentile(0.9), h.getMax()));
+            }
+            Map<String, Long> codecs = s.getImageCodecs();
+            if (!codecs.isEmpty()) {
+                sb.append("  images  ");
+                for (Map.Entry<String, Long> codec : codecs.entrySet()) {
+                    sb.append(" ").append(codec.getKey()).append(" x").append(codec.getValue());
+                }
+                sb.append("\n");
+            }
+        }
+        if (sb.length() == 0) return "No SD calls recorded yet.";
+        sb.append(String.format(Locale.US, "Upload throughput: %d KB/s\n", Math.round(UploadCodecPolicy.getThroughput() / 1024)));
+        return sb.toString();
+    }
+
+    static String getRequestType(Request request) {
+        String tag = request.tag(String.class);
+        if (tag != null) return tag;
+        List<String> segments = request.url().pathSegments();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (!segments.get(i).isEmpty()) return segments.get(i);
+        }
+        return request.url().host();
+    }
+
+    /* One listener per call. A call retried by RetryInterceptor keeps the times of its last attempt. */
+    private static class TimingListener extends EventListener {
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long secureConnectStart;
+        private long requestStart;
+        private long requestEnd;
+        private long responseHeadersStart;
+        private long responseBodyStart;
+        private long bytesSent;
+        private long bytesReceived;
+        private final Map<String, Long> durations = new TreeMap<>();
+
+        @Override
+        public void callStart(@NonNull Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(@NonNull Call call, @NonNull String domainName, @NonNull List<InetAddress> inetAddressList) {
+            record(DNS, dnsStart);
+        }
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+            record(TLS, secureConnectStart);
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy, Protocol protocol) {
+            record(CONNECT, connectStart);
+            HttpClientRegistry.onConnectionCreated();
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy, Protocol protocol, @NonNull IOException ioe) {
+            record(CONNECT, connectStart);
+        }
+
+        @Override
+        public void connectionAcquired(@NonNull Call call, @NonNull okhttp3.Connection connection) {
+            HttpClientRegistry.onConnectionAcquired();
+        }
+
+        @Override
+        public void requestHeadersStart(@NonNull Call call) {
+            requestStart = System.nanoTime();
+            requestEnd = requestStart;
+        }
+
+        @Override
+        public void requestHeadersEnd(@NonNull Call call, @NonNull Request request) {
+            requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(@NonNull Call call, long byteCount) {
+            requestEnd = System.nanoTime();
+            bytesSent += byteCount;
+            record(UPLOAD, requestStart);
+            SdRequestBody body = call.request().tag(SdRequestBody.class);
+            if (requestStart > 0 && (body == null || body.isPreEncoded())) {
+                UploadCodecPolicy.recordUpload(byteCount, requestEnd - requestStart);
+            }
+        }
+
+        @Override
+        public void responseHeadersStart(@NonNull Call call) {
+            responseHeadersStart = System.nanoTime();
+            record(TTFB, requestEnd);
+        }
+
+        @Override
+        public void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+            responseBodyStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(@NonNull Call call, long byteCount) {
+            bytesReceived += byteCount;
+            record(DOWNLOAD, responseBodyStart > 0 ? responseBodyStart : responseHeadersStart);
+        }
+
+        @Override
+        public void callEnd(@NonNull Call call) {
+            finish(call, false);
+        }
+
+        @Override
+        public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+            finish(call, true);
+        }
+
+        private void record(String timing, long start) {
+            if (start > 0) durations.put(timing, (System.nanoTime() - start) / 1000000);
+        }
+
+        private void finish(Call call, boolean failed) {
+            record(TOTAL, callStart);
+            RequestTypeStats s = getStats(getRequestType(call.request()));
+            SdRequestBody body = call.request().tag(SdRequestBody.class);
+            if (body != null && !failed) s.onImageCodecs(body.getImageCodecs());
+            for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                s.getTiming(entry.getKey()).add(entry.getValue());
+            }
+            s.onCallEnd(failed, bytesSent, bytesReceived);
+        }
+    }
+}
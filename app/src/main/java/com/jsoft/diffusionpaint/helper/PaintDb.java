@@ -12,7 +12,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import com.jsoft.diffusionpaint.dto.SdJob;
 import com.jsoft.diffusionpaint.dto.Sketch;
+import com.jsoft.diffusionpaint.helper.PaintDbHelper.JobEntry;
 import com.jsoft.diffusionpaint.helper.PaintDbHelper.SketchEntry;
 
 public class PaintDb {
@@ -281,5 +283,85 @@ public class PaintDb {
         return result;
     }
 
+    public long insertJob(SdJob job) {
+        ContentValues values = new ContentValues();
+        values.put(JobEntry.SKETCH_ID, job.sketchId);
+        values.put(JobEntry.CN_MODE, job.cnMode);
+        values.put(JobEntry.REQUEST_TYPE, job.requestType);
+        values.put(JobEntry.PAYLOAD_PATH, job.payloadPath);
+        values.put(JobEntry.SD_PARAM, job.sdParam);
+        values.put(JobEntry.MODEL, job.model);
+        values.put(JobEntry.PRIORITY, job.priority);
+        values.put(JobEntry.STATUS, job.status);
+        values.put(JobEntry.NEXT_RUN_TIME, job.nextRunTime);
+        values.put(JobEntry.CREATE_DATE, PaintDbHelper.getDateTime(new Date()));
+        job.id = db.insert(JobEntry.TABLE_NAME, null, values);
+        return job.id;
+    }
+
+    public int updateJob(SdJob job) {
+        ContentValues values = new ContentValues();
+        values.put(JobEntry.STATUS, job.status);
+        values.put(JobEntry.RETRY_COUNT, job.retryCount);
+        values.put(JobEntry.NEXT_RUN_TIME, job.nextRunTime);
+        values.put(JobEntry.ERROR_MESSAGE, job.errorMessage);
+        return db.update(JobEntry.TABLE_NAME, values, JobEntry._ID + "=" + job.id, null);
+    }
+
+    public void deleteJob(long jobId) {
+        db.delete(JobEntry.TABLE_NAME, JobEntry._ID + "=" + jobId, null);
+    }
 
+    /* Returns the pending jobs which are due, by priority and then age. */
+    public List<SdJob> getDueJobs(long now) {
+        String queryString =
+                "SELECT * FROM " + JobEntry.TABLE_NAME
+                        + " WHERE " + JobEntry.STATUS + " = ?"
+                        + " AND " + JobEntry.NEXT_RUN_TIME + " <= ?"
+                        + " ORDER BY " + JobEntry.PRIORITY + " DESC, " + JobEntry._ID + " ASC";
+        Cursor c = db.rawQuery(queryString, new String[] {SdJob.STATUS_PENDING, now + ""});
+        List<SdJob> jobs = new ArrayList<>();
+        while (c.moveToNext()) {
+            SdJob job = new SdJob();
+            job.id = c.getLong(c.getColumnIndexOrThrow(JobEntry._ID));
+            job.sketchId = c.getInt(c.getColumnIndexOrThrow(JobEntry.SKETCH_ID));
+            job.cnMode = c.getString(c.getColumnIndexOrThrow(JobEntry.CN_MODE));
+            job.requestType = c.getString(c.getColumnIndexOrThrow(JobEntry.REQUEST_TYPE));
+            job.payloadPath = c.getString(c.getColumnIndexOrThrow(JobEntry.PAYLOAD_PATH));
+            job.sdParam = c.getString(c.getColumnIndexOrThrow(JobEntry.SD_PARAM));
+            job.model = c.getString(c.getColumnIndexOrThrow(JobEntry.MODEL));
+            job.priority = c.getInt(c.getColumnIndexOrThrow(JobEntry.PRIORITY));
+            job.status = c.getString(c.getColumnIndexOrThrow(JobEntry.STATUS));
+            job.retryCount = c.getInt(c.getColumnIndexOrThrow(JobEntry.RETRY_COUNT));
+            job.nextRunTime = c.getLong(c.getColumnIndexOrThrow(JobEntry.NEXT_RUN_TIME));
+            job.createTime = PaintDbHelper.parseDateTime(c.getString(c.getColumnIndexOrThrow(JobEntry.CREATE_DATE))).getTime();
+            jobs.add(job);
+        }
+        c.close();
+        return jobs;
+    }
+
+    public int getPendingJobCount() {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + JobEntry.TABLE_NAME
+                + " WHERE " + JobEntry.STATUS + " IN (?, ?)", new String[] {SdJob.STATUS_PENDING, SdJob.STATUS_RUNNING});
+        int result = c.moveToFirst() ? c.getInt(0) : 0;
+        c.close();
+        return result;
+    }
+
+    /* Returns the earliest run time of the pending jobs, or -1 if there is none. */
+    public long getNextJobRunTime() {
+        Cursor c = db.rawQuery("SELECT MIN(" + JobEntry.NEXT_RUN_TIME + ") FROM " + JobEntry.TABLE_NAME
+                + " WHERE " + JobEntry.STATUS + " = ?", new String[] {SdJob.STATUS_PENDING});
+        long result = (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : -1;
+        c.close();
+        return result;
+    }
+
+    /* Jobs left running by a killed process are put back to the queue. */
+    public void resetRunningJobs() {
+        ContentValues values = new ContentValues();
+        values.put(JobEntry.STATUS, SdJob.STATUS_PENDING);
+        db.update(JobEntry.TABLE_NAME, values, JobEntry.STATUS + " = ?", new String[] {SdJob.STATUS_RUNNING});
+    }
 }
@@ -31,13 +31,32 @@ public class PaintDbHelper extends SQLiteOpenHelper {
 
     }
 
+    public static abstract class JobEntry implements BaseColumns {
+        public static final String TABLE_NAME = "SD_JOB";
+        public static final String _ID = "_id";
+        public static final String SKETCH_ID = "sketch_id";
+        public static final String CN_MODE = "cn_mode";
+        public static final String REQUEST_TYPE = "request_type";
+        public static final String PAYLOAD_PATH = "payload_path";
+        public static final String SD_PARAM = "sd_param";
+        public static final String MODEL = "model";
+        public static final String PRIORITY = "priority";
+        public static final String STATUS = "status";
+        public static final String RETRY_COUNT = "retry_count";
+        public static final String NEXT_RUN_TIME = "next_run_time";
+        public static final String ERROR_MESSAGE = "error_message";
+        public static final String CREATE_DATE = "create_date";
+    }
+
     // Database Information
     static final String DB_NAME = "DIFFUSION_PAINT.DB";
 
     // database version
-    static final int DB_VERSION = 8;
+    static final int DB_VERSION = 10;
 
-    static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+    // SimpleDateFormat is not thread safe, and the queue workers read jobs and sketches at once
+    private static final ThreadLocal<SimpleDateFormat> dateFormat =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()));
 
     // Creating table query
     private static final String CREATE_TABLE = "create table IF NOT EXISTS " + SketchEntry.TABLE_NAME + "("
@@ -56,6 +75,21 @@ public class PaintDbHelper extends SQLiteOpenHelper {
             + SketchEntry.NEG_PROMPT + " TEXT DEFAULT '', "
             + SketchEntry.PROMPT + " TEXT);";
 
+    private static final String CREATE_JOB_TABLE = "create table IF NOT EXISTS " + JobEntry.TABLE_NAME + "("
+            + JobEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + JobEntry.SKETCH_ID + " INTEGER DEFAULT -1, "
+            + JobEntry.CN_MODE + " TEXT DEFAULT '', "
+            + JobEntry.REQUEST_TYPE + " TEXT NOT NULL, "
+            + JobEntry.PAYLOAD_PATH + " TEXT NOT NULL, "
+            + JobEntry.SD_PARAM + " TEXT DEFAULT '{}', "
+            + JobEntry.MODEL + " TEXT DEFAULT '', "
+            + JobEntry.PRIORITY + " INTEGER DEFAULT 0, "
+            + JobEntry.STATUS + " TEXT DEFAULT 'pending', "
+            + JobEntry.RETRY_COUNT + " INTEGER DEFAULT 0, "
+            + JobEntry.NEXT_RUN_TIME + " INTEGER DEFAULT 0, "
+            + JobEntry.ERROR_MESSAGE + " TEXT DEFAULT '', "
+            + JobEntry.CREATE_DATE + " TEXT NOT NULL);";
+
     public PaintDbHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
@@ -63,6 +97,7 @@ public class PaintDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE);
+        db.execSQL(CREATE_JOB_TABLE);
     }
 
     @Override
@@ -91,17 +126,21 @@ public class PaintDbHelper extends SQLiteOpenHelper {
         if (oldVersion <= 7) {
             db.execSQL("ALTER TABLE " + SketchEntry.TABLE_NAME + " ADD COLUMN " + SketchEntry.STYLE + " TEXT DEFAULT ''");
         }
+        if (oldVersion == 9) {
+            // SD_JOB was added in version 9, older versions get it from onCreate
+            db.execSQL("ALTER TABLE " + JobEntry.TABLE_NAME + " ADD COLUMN " + JobEntry.MODEL + " TEXT DEFAULT ''");
+        }
         onCreate(db);
     }
 
     public static String getDateTime(Date date) {
-        return dateFormat.format(date);
+        return dateFormat.get().format(date);
     }
 
     public static Date parseDateTime(String dbDate) {
         Date d = new Date();
         try {
-            d = dateFormat.parse(dbDate);
+            d = dateFormat.get().parse(dbDate);
         } catch (ParseException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,80 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+
+import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.dto.Sketch;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/*
+ * Encodes the images of a sketch while the prompt dialog is still open, so the encodings are
+ * already in EncodedImageCache when the sketch is saved and the request is sent. The payload of
+ * the selected mode is built and written to nowhere. Selecting another mode starts over for
+ * that mode, and the work of the previous mode stops at the next image.
+ */
+public class PayloadPreEncoder {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final SdApiHelper sdApiHelper;
+    private int generation = 0;
+    private String preparedMode;
+
+    public PayloadPreEncoder(SdApiHelper sdApiHelper) {
+        this.sdApiHelper = sdApiHelper;
+    }
+
+    public synchronized void prepare(Sketch sketch, String cnMode) {
+        if (sketch == null || cnMode == null || cnMode.equals(preparedMode) || executor.isShutdown()) return;
+        preparedMode = cnMode;
+        int myGeneration = ++generation;
+        Sketch copy = sketch.copy();
+        copy.setCnMode(cnMode);
+        executor.execute(() -> {
+            try {
+                // the images saved with the sketch come first, they are needed first
+                Bitmap[] saved = {copy.getImgPreview(), copy.getImgBackground(), copy.getImgReference()};
+                for (Bitmap bm : saved) {
+                    if (isStale(myGeneration)) return;
+                    if (bm != null) Utils.jpg2Base64String(bm);
+                }
+                if (isStale(myGeneration)) return;
+                if (copy.getImgPaint() != null) Utils.png2Base64String(copy.getImgPaint());
+                if (isStale(myGeneration) || Sketch.CN_MODE_ORIGIN.equals(cnMode)) return;
+
+                SdParam param = sdApiHelper.getSdCnParm(cnMode);
+                // each tile of a tiled render has a payload of its own
+                if (param.tiled == SdParam.TILED) return;
+                Utils.prepareSketchForMode(copy, param);
+                JSONObject jsonObject = param.type.equals(SdParam.SD_MODE_TYPE_TXT2IMG) ?
+                        sdApiHelper.getControlnetTxt2imgJSON(param, copy) : sdApiHelper.getControlnetImg2imgJSON(param, copy);
+                if (isStale(myGeneration)) return;
+                try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+                    new SdRequestBody(jsonObject).writeTo(sink);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    public synchronized void cancel() {
+        generation++;
+        preparedMode = null;
+    }
+
+    /* Stops the work in progress at the next image and ends the thread. */
+    public synchronized void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    private synchronized boolean isStale(int myGeneration) {
+        return myGeneration != generation;
+    }
+}
@@ -0,0 +1,290 @@
+package com.jsoft.diffusionpaint.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Writes grayscale PNGs, which Bitmap.compress cannot: it always writes 32 bit RGBA. A mask or a
+ * black and white line drawing carries one bit or one byte per pixel, so the PNG is several times
+ * smaller before deflate even starts. Works on ARGB pixels as returned by Bitmap.getPixels, the
+ * gray level is the luminance, alpha is ignored. RgbWriter streams RGB PNGs that do not fit in
+ * a Bitmap.
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    /* Fraction of pixels that may be neither near black nor near white in a line drawing. */
+    private static final double LINE_ART_MAX_GRAY = 0.02;
+
+    public static byte[] toGray(int[] argb) {
+        byte[] gray = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            gray[i] = (byte) ((r * 77 + g * 150 + b * 29) >> 8);
+        }
+        return gray;
+    }
+
+    /* True when every pixel is black or white, so the image fits in a 1 bit PNG. */
+    public static boolean isBlackAndWhite(byte[] gray) {
+        for (byte value : gray) {
+            if (value != 0 && value != (byte) 255) return false;
+        }
+        return true;
+    }
+
+    /* True when nearly all pixels are near black or near white, as in a scribble on plain paper. */
+    public static boolean isLineArt(byte[] gray) {
+        long midTones = 0;
+        for (byte value : gray) {
+            int level = value & 0xff;
+            if (level > 64 && level < 192) midTones++;
+        }
+        return midTones <= gray.length * LINE_ART_MAX_GRAY;
+    }
+
+    /*
+     * Black for ink, white for paper: a pixel is paper when none of its channels is below
+     * paperLevel. Unlike a luminance threshold this keeps light coloured strokes such as yellow.
+     */
+    public static byte[] toInk(int[] argb, int paperLevel) {
+        byte[] ink = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            int min = Math.min((pixel >> 16) & 0xff, Math.min((pixel >> 8) & 0xff, pixel & 0xff));
+            ink[i] = min >= paperLevel ? (byte) 255 : 0;
+        }
+        return ink;
+    }
+
+    /* bitDepth 1 keeps only the top bit of each pixel, bitDepth 8 all of it. */
+    public static void writeGray(OutputStream out, byte[] gray, int width, int height, int bitDepth) throws IOException {
+        if (bitDepth != 1 && bitDepth != 8) throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        if (gray.length != width * height) throw new IllegalArgumentException("Expected " + width * height + " pixels");
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(bitDepth);
+        headerData.writeByte(0); // grayscale
+        headerData.writeByte(0); // deflate
+        headerData.writeByte(0); // adaptive filtering
+        headerData.writeByte(0); // no interlace
+
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (DeflaterOutputStream deflated = new DeflaterOutputStream(idat, deflater, 8192)) {
+            if (bitDepth == 1) {
+                writeRows1Bit(deflated, gray, width, height);
+            } else {
+                writeRows8Bit(deflated, gray, width, height);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        out.write(SIGNATURE);
+        writeChunk(out, "IHDR", header.toByteArray());
+        writeChunk(out, "IDAT", idat.toByteArray());
+        writeChunk(out, "IEND", new byte[0]);
+    }
+
+    private static void writeRows1Bit(OutputStream out, byte[] gray, int width, int height) throws IOException {
+        byte[] row = new byte[1 + (width + 7) / 8];
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(row, (byte) 0);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if ((gray[offset + x] & 0x80) != 0) {
+                    row[1 + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                }
+            }
+            out.write(row);
+        }
+    }
+
+    /* Per row the cheapest of the None, Sub and Up filters, by the usual sum of absolute values. */
+    private static void writeRows8Bit(OutputStream out, byte[] gray, int width, int height) throws IOException {
+        byte[] none = new byte[1 + width];
+        byte[] sub = new byte[1 + width];
+        byte[] up = new byte[1 + width];
+        none[0] = 0;
+        sub[0] = 1;
+        up[0] = 2;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            long noneSum = 0;
+            long subSum = 0;
+            long upSum = 0;
+            for (int x = 0; x < width; x++) {
+                int value = gray[offset + x] & 0xff;
+                int left = x > 0 ? gray[offset + x - 1] & 0xff : 0;
+                int above = y > 0 ? gray[offset - width + x] & 0xff : 0;
+                none[1 + x] = (byte) value;
+                sub[1 + x] = (byte) (value - left);
+                up[1 + x] = (byte) (value - above);
+                noneSum += Math.abs((byte) value);
+                subSum += Math.abs((byte) (value - left));
+                upSum += Math.abs((byte) (value - above));
+            }
+            if (subSum <= noneSum && subSum <= upSum) {
+                out.write(sub);
+            } else if (upSum <= noneSum) {
+                out.write(up);
+            } else {
+                out.write(none);
+            }
+        }
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data) throws IOException {
+        writeChunk(out, type, data, data.length);
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        DataOutputStream chunk = new DataOutputStream(out);
+        chunk.writeInt(length);
+        chunk.write(typeBytes);
+        chunk.write(data, 0, length);
+        chunk.writeInt((int) crc.getValue());
+        chunk.flush();
+    }
+
+    /*
+     * Writes a 24 bit RGB PNG a few rows at a time, for images too large to have in memory at
+     * once. The deflated rows go out in IDAT chunks of CHUNK_SIZE, only the previous row is kept
+     * for the filters.
+     */
+    public static class RgbWriter implements Closeable {
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private final OutputStream out;
+        private final int width;
+        private final int height;
+        private final Deflater deflater;
+        private final DeflaterOutputStream deflated;
+        private final byte[][] filtered;
+        private byte[] previous;
+        private byte[] current;
+        private int rowsWritten;
+
+        public RgbWriter(OutputStream out, int width, int height, int level) throws IOException {
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(8);
+            headerData.writeByte(2); // truecolor
+            headerData.writeByte(0); // deflate
+            headerData.writeByte(0); // adaptive filtering
+            headerData.writeByte(0); // no interlace
+            out.write(SIGNATURE);
+            writeChunk(out, "IHDR", header.toByteArray());
+
+            deflater = new Deflater(level);
+            deflated = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_SIZE);
+            filtered = new byte[3][1 + width * 3];
+            for (int i = 0; i < filtered.length; i++) filtered[i][0] = (byte) i;
+            previous = new byte[width * 3];
+            current = new byte[width * 3];
+        }
+
+        /* rows full rows of ARGB pixels from argb, alpha is dropped. */
+        public void writeRows(int[] argb, int rows) throws IOException {
+            if (rowsWritten + rows > height) throw new IOException("More than " + height + " rows");
+            for (int y = 0; y < rows; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int pixel = argb[offset + x];
+                    current[x * 3] = (byte) (pixel >> 16);
+                    current[x * 3 + 1] = (byte) (pixel >> 8);
+                    current[x * 3 + 2] = (byte) pixel;
+                }
+                writeRow();
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+                rowsWritten++;
+            }
+        }
+
+        /* Per row the cheapest of the None, Sub and Up filters, as for gray rows. */
+        private void writeRow() throws IOException {
+            long[] sums = new long[3];
+            for (int i = 0; i < current.length; i++) {
+                int value = current[i] & 0xff;
+                int left = i >= 3 ? current[i - 3] & 0xff : 0;
+                int above = rowsWritten > 0 ? previous[i] & 0xff : 0;
+                filtered[0][1 + i] = (byte) value;
+                filtered[1][1 + i] = (byte) (value - left);
+                filtered[2][1 + i] = (byte) (value - above);
+                sums[0] += Math.abs((byte) value);
+                sums[1] += Math.abs((byte) (value - left));
+                sums[2] += Math.abs((byte) (value - above));
+            }
+            int best = sums[1] <= sums[0] && sums[1] <= sums[2] ? 1 : sums[2] <= sums[0] ? 2 : 0;
+            deflated.write(filtered[best]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                deflated.close();
+            } finally {
+                deflater.end();
+            }
+            if (rowsWritten != height) throw new IOException("Only " + rowsWritten + " of " + height + " rows written");
+            writeChunk(out, "IEND", new byte[0]);
+        }
+
+        private class IdatStream extends OutputStream {
+            private final byte[] buffer = new byte[CHUNK_SIZE];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) flushChunk();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length) flushChunk();
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (count > 0) flushChunk();
+            }
+
+            private void flushChunk() throws IOException {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jsoft.diffusionpaint.helper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Works out when to poll /sdapi/v1/progress next. The delay follows the ETA reported by the
+ * server and backs off when polling fails. The time per step of each model is learnt from
+ * finished jobs, and jobs predicted to finish in a moment are not polled at all.
+ */
+public class ProgressPoller {
+    public static final long NO_POLL = -1;
+    private static final long SHORT_JOB_MS = 2000;
+    private static final long MIN_DELAY = 500;
+    private static final long MAX_DELAY = 5000;
+    private static final long MAX_BACKOFF = 16000;
+    private static final Map<String, Double> msPerStep = new HashMap<>();
+
+    private String modelKey;
+    private int steps;
+    private int totalSteps;
+    private long startTime;
+    private int failures;
+    private boolean running;
+    private boolean skipped;
+
+    public synchronized long start(String modelKey, int steps, int batchCount) {
+        this.modelKey = modelKey;
+        this.steps = Math.max(1, steps);
+        this.totalSteps = this.steps * Math.max(1, batchCount);
+        this.startTime = System.currentTimeMillis();
+        this.failures = 0;
+        this.running = true;
+        long predicted = getPredictedDuration();
+        skipped = predicted >= 0 && predicted < SHORT_JOB_MS;
+        if (skipped) {
+            return NO_POLL;
+        }
+        return predicted < 0 ? 1000 : clamp(predicted / 4);
+    }
+
+    /* For the follow-up call of the same generation, batchCount is its own n_iter. */
+    public synchronized long restart(int batchCount) {
+        return start(modelKey, steps, batchCount);
+    }
+
+    public synchronized long getPredictedDuration() {
+        Double rate = msPerStep.get(modelKey);
+        return rate == null ? -1 : Math.round(rate * totalSteps);
+    }
+
+    public synchronized long onProgress(double progress, double etaRelative) {
+        failures = 0;
+        if (etaRelative <= 0 || progress <= 0) {
+            return 1000;
+        }
+        return clamp(Math.round(etaRelative * 1000 / 3));
+    }
+
+    public synchronized long onFailure() {
+        failures++;
+        return Math.min(MAX_BACKOFF, 1000L << Math.min(failures, 4));
+    }
+
+    public synchronized void finish(boolean completed) {
+        if (!running) return;
+        running = false;
+        if (!completed) return;
+        double rate = (double) (System.currentTimeMillis() - startTime) / totalSteps;
+        Double old = msPerStep.get(modelKey);
+        msPerStep.put(modelKey, old == null ? rate : old * 0.7 + rate * 0.3);
+    }
+
+    public synchronized boolean isPolling() {
+        return running && !skipped;
+    }
+
+    private static long clamp(long delay) {
+        return Math.max(MIN_DELAY, Math.min(MAX_DELAY, delay));
+    }
+}
@@ -0,0 +1,216 @@
+package com.jsoft.diffusionpaint.helper;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * Retries SD calls which failed for a transient reason: the server could not be reached, or
+ * the proxy answered 502/503/504. The delay grows exponentially with jitter, and each endpoint
+ * has a retry budget which is spent by retries and slowly earned back by successful calls, so a
+ * server that is down is not flooded. A 502 or 503 means the proxy did not forward the request,
+ * so even a generation is sent again. After a 504 or a read timeout the server may still be
+ * working on it: a generation is then only sent again when GET /sdapi/v1/progress, asked after
+ * the backoff, shows the server idle.
+ */
+public class RetryInterceptor implements Interceptor {
+    public static final int MAX_BUDGET = 10;
+    private static final double BUDGET_PER_SUCCESS = 0.2;
+    private static final String[] GENERATION_PATHS = {"/sdapi/v1/txt2img", "/sdapi/v1/img2img", "/sdapi/v1/extra-single-image"};
+    private static final String PROGRESS_PATH = "/sdapi/v1/progress";
+    private static final long CANCEL_CHECK_MS = 100;
+    private static final int MAX_ERROR_BODY = 64 * 1024;
+
+    enum Policy {
+        NONE(1),
+        CONNECT_ONLY(2),
+        IDEMPOTENT(4),
+        GENERATION(3);
+
+        final int maxAttempts;
+
+        Policy(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
+    private final OkHttpClient probeClient;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Map<String, Double> budgets = new HashMap<>();
+    private final Random random = new Random();
+
+    public RetryInterceptor(OkHttpClient probeClient) {
+        this(probeClient, 1000, 16000);
+    }
+
+    public RetryInterceptor(OkHttpClient probeClient, long baseDelay, long maxDelay) {
+        this.probeClient = probeClient;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+        Request request = chain.request();
+        String endpoint = getEndpoint(request.url());
+        Policy policy = getPolicy(request.method(), endpoint);
+
+        for (int attempt = 1; ; attempt++) {
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                boolean connectFailure = isConnectFailure(e);
+                if (chain.call().isCanceled() || attempt >= policy.maxAttempts
+                        || !(connectFailure || policy == Policy.IDEMPOTENT || policy == Policy.GENERATION)) {
+                    throw e;
+                }
+                sleep(chain, getDelay(attempt, null));
+                if ((policy == Policy.GENERATION && !connectFailure && isServerBusy(request.url()))
+                        || !spendBudget(endpoint)) {
+                    throw e;
+                }
+                continue;
+            }
+
+            int code = response.code();
+            if (code != 502 && code != 503 && code != 504) {
+                if (response.isSuccessful()) earnBudget(endpoint);
+                return response;
+            }
+            if (attempt >= policy.maxAttempts || policy == Policy.CONNECT_ONLY || policy == Policy.NONE) {
+                return response;
+            }
+            // the response is closed during the backoff, a copy is returned if there is no retry
+            String retryAfter = response.header("Retry-After");
+            Response failed = response.newBuilder().body(response.peekBody(MAX_ERROR_BODY)).build();
+            response.close();
+            sleep(chain, getDelay(attempt, retryAfter));
+            if ((policy == Policy.GENERATION && code == 504 && isServerBusy(request.url()))
+                    || !spendBudget(endpoint)) {
+                return failed;
+            }
+        }
+    }
+
+    static Policy getPolicy(String method, String endpoint) {
+        if (endpoint.endsWith(PROGRESS_PATH)) {
+            // polled on its own schedule, a retry would only delay the next poll
+            return Policy.NONE;
+        }
+        if ("GET".equals(method)) {
+            return Policy.IDEMPOTENT;
+        }
+        for (String path : GENERATION_PATHS) {
+            if (endpoint.endsWith(path)) return Policy.GENERATION;
+        }
+        return Policy.CONNECT_ONLY;
+    }
+
+    /* The request did not reach the server, so it is safe to send even a generation again. */
+    public static boolean isConnectFailure(IOException e) {
+        if (e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException) {
+            return true;
+        }
+        return e instanceof SocketTimeoutException && e.getMessage() != null && e.getMessage().toLowerCase().contains("connect");
+    }
+
+    /* True when the server is running a job, or when that cannot be told. */
+    boolean isServerBusy(HttpUrl url) {
+        return !Boolean.FALSE.equals(probeServerBusy(probeClient, url));
+    }
+
+    /* Whether the server of url is running a job, null when that cannot be told. */
+    public static Boolean probeServerBusy(OkHttpClient probeClient, HttpUrl url) {
+        String path = url.encodedPath();
+        int sdapi = path.indexOf("/sdapi/");
+        HttpUrl progressUrl = url.newBuilder()
+                .encodedPath((sdapi > 0 ? path.substring(0, sdapi) : "") + PROGRESS_PATH)
+                .query("skip_current_image=true")
+                .build();
+        Request request = new Request.Builder().url(progressUrl).get().build();
+        try (Response response = probeClient.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) return null;
+            JsonObject progress = JsonParser.parseString(body.string()).getAsJsonObject();
+            if (progress.has("progress") && progress.get("progress").getAsDouble() > 0) return true;
+            if (progress.has("state") && progress.getAsJsonObject("state").has("job_count")) {
+                return progress.getAsJsonObject("state").get("job_count").getAsInt() > 0;
+            }
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    long getDelay(int attempt, String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Math.min(maxDelay, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException ignored) {}
+        }
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 16));
+        synchronized (random) {
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    private synchronized boolean spendBudget(String endpoint) {
+        double budget = getBudget(endpoint);
+        if (budget < 1) return false;
+        budgets.put(endpoint, budget - 1);
+        return true;
+    }
+
+    private synchronized void earnBudget(String endpoint) {
+        budgets.put(endpoint, Math.min(MAX_BUDGET, getBudget(endpoint) + BUDGET_PER_SUCCESS));
+    }
+
+    synchronized double getBudget(String endpoint) {
+        Double budget = budgets.get(endpoint);
+        return budget == null ? MAX_BUDGET : budget;
+    }
+
+    static String getEndpoint(HttpUrl url) {
+        return url.host() + ":" + url.port() + url.encodedPath();
+    }
+
+    /* Sleeps in short slices, so a cancelled call stops waiting at once. */
+    private static void sleep(Chain chain, long delay) throws IOException {
+        long end = System.currentTimeMillis() + delay;
+        while (true) {
+            if (chain.call().isCanceled()) {
+                throw new IOException("Canceled");
+            }
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) return;
+            try {
+                Thread.sleep(Math.min(left, CANCEL_CHECK_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Retry interrupted");
+            }
+        }
+    }
+}
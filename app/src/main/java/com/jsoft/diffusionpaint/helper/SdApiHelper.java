@@ -26,15 +26,12 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Headers;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
@@ -44,11 +41,23 @@ public class SdApiHelper {
     private SdApiResponseListener listener;
     private OkHttpClient client;
 
+    private static final String[] METADATA_URLS = {"/sdapi/v1/sd-models", "/sdapi/v1/samplers", "/sdapi/v1/upscalers",
+            "/sdapi/v1/loras", "/sdapi/v1/prompt-styles", "/controlnet/model_list"};
+
     public SdApiHelper(Activity activity, SdApiResponseListener listener) {
         this.activity  = activity;
         this.listener = listener;
         sharedPreferences = activity.getSharedPreferences("MyPrefs", Context.MODE_PRIVATE);
         client = getClient(10, 120);
+        try {
+            SdMetadataCache.setTtlMinutes(Long.parseLong(sharedPreferences.getString("metadataCacheTtl", String.valueOf(SdMetadataCache.DEFAULT_TTL_MINUTES))));
+        } catch (Exception ignored) {}
+    }
+
+    private String getMetadataServer() {
+        String baseUrl = sharedPreferences.getString("sdServerAddress", "");
+        SdMetadataCache.loadSnapshot(activity.getFilesDir(), baseUrl);
+        return baseUrl;
     }
 
     public void setActivity(Activity activity) { this.activity  = activity;}
@@ -62,37 +71,102 @@ public class SdApiHelper {
         sendRequest(requestType, sharedPreferences.getString("sdServerAddress", ""), url, null, "GET");
     }
 
+    public SdBackendPool getBackendPool() {
+        return SdBackendPool.getInstance(sharedPreferences);
+    }
+
+    public String getCachedMetadata(String url) {
+        return SdMetadataCache.get(getMetadataServer(), url);
+    }
+
+    /* Only while stale lists may be served, with a TTL of 0 the lists come from the server. */
+    public void loadCachedLists() {
+        if (!SdMetadataCache.servesStale()) return;
+        String loras = getCachedMetadata("/sdapi/v1/loras");
+        if (loras != null) {
+            DrawingActivity.loraList = getLoras(loras);
+        }
+        String styles = getCachedMetadata("/sdapi/v1/prompt-styles");
+        if (styles != null) {
+            DrawingActivity.styleList = getStyles(styles);
+        }
+    }
+
+    public void revalidateMetadata() {
+        String baseUrl = getMetadataServer();
+        if (baseUrl.isEmpty()) return;
+        for (String url : METADATA_URLS) {
+            if (SdMetadataCache.get(baseUrl, url) != null && !SdMetadataCache.isFresh(baseUrl, url)
+                    && SdMetadataCache.register(baseUrl, url, null)) {
+                fetchMetadata("revalidate", baseUrl, url);
+            }
+        }
+    }
+
+    public void sendCachedGetRequest(String requestType, String url) {
+        String baseUrl = getMetadataServer();
+        String cached = SdMetadataCache.get(baseUrl, url);
+        if (cached != null && (SdMetadataCache.servesStale() || SdMetadataCache.isFresh(baseUrl, url))) {
+            SdApiResponseListener l = listener;
+            activity.runOnUiThread(() -> l.onSdApiResponse(requestType, cached));
+            if (!SdMetadataCache.isFresh(baseUrl, url) && SdMetadataCache.register(baseUrl, url, null)) {
+                fetchMetadata(requestType, baseUrl, url);
+            }
+            return;
+        }
+        if (SdMetadataCache.register(baseUrl, url, new SdMetadataCache.Waiter(activity, listener, requestType))) {
+            fetchMetadata(requestType, baseUrl, url);
+        }
+    }
+
+    private void fetchMetadata(String requestType, String baseUrl, String url) {
+        sendRequest(requestType, baseUrl, url, null, "GET", client, activity, new SdApiResponseListener() {
+            @Override
+            public void onSdApiFailure(String requestType, String errorMessage) {
+                SdMetadataCache.fail(baseUrl, url, errorMessage);
+            }
+
+            @Override
+            public void onSdApiResponse(String requestType, String responseBody) {
+                SdMetadataCache.complete(baseUrl, url, responseBody);
+            }
+        });
+    }
+
     public void sendPostRequest(String requestType, String url, JSONObject jsonObject) {
         sendRequest(requestType, sharedPreferences.getString("sdServerAddress", ""), url, jsonObject, "POST");
     }
 
-    public void sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String httpMethod) {
-        sendRequest(requestType, baseUrl, url, jsonObject, httpMethod, this.client);
+    public Call sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String httpMethod) {
+        return sendRequest(requestType, baseUrl, url, jsonObject, httpMethod, this.client);
     }
 
     public static OkHttpClient getClient(long connectTimeout, long readTimeout) {
-        OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(connectTimeout, TimeUnit.SECONDS)
-                .readTimeout(readTimeout, TimeUnit.SECONDS)
-                .build();
-        return client;
+        return HttpClientRegistry.getClient(connectTimeout, readTimeout);
+    }
+
+    public Call sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String httpMethod, OkHttpClient client) {
+        return sendRequest(requestType, baseUrl, url, jsonObject, httpMethod, client, activity, listener);
     }
 
-    public void sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String httpMethod, OkHttpClient client) {
+    private Call sendRequest(String requestType, String baseUrl, String url, JSONObject jsonObject, String httpMethod, OkHttpClient client,
+                             Activity activity, SdApiResponseListener listener) {
         Request.Builder requestBuilder = new Request.Builder()
-                .url(baseUrl + url);
+                .url(baseUrl + url)
+                .tag(String.class, requestType);
         if ("GET".equals(httpMethod)) {
             requestBuilder.get();
         } else {
-            MediaType JSON = MediaType.get("application/json; charset=utf-8");
-            RequestBody body = RequestBody.create(jsonObject.toString(), JSON);
-            requestBuilder.post(body);
+            SdRequestBody body = new SdRequestBody(jsonObject);
+            requestBuilder.post(body).tag(SdRequestBody.class, body);
         }
         Request request = requestBuilder.build();
 
-        client.newCall(request).enqueue(new Callback() {
+        Call sdCall = client.newCall(request);
+        sdCall.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (call.isCanceled()) return;
                 e.printStackTrace();
                 activity.runOnUiThread(() -> listener.onSdApiFailure(requestType, e.getMessage()));
             }
@@ -115,17 +189,33 @@ public class SdApiHelper {
                     activity.runOnUiThread(() -> listener.onSdApiResponse(requestType, responseString));
 
                 } catch (IOException e) {
+                    if (call.isCanceled()) return;
                     e.printStackTrace();
                     activity.runOnUiThread(() -> listener.onSdApiFailure(requestType, "IOException: " + e.getMessage()));
                 }
             }
         });
+        return sdCall;
     }
 
     public JSONObject getExtraSingleImageJSON(Bitmap bitmap) {
+        return getExtraSingleImageJSON(bitmap, getUpscaleFactor(bitmap));
+    }
+
+    /* Up to 4x, to the canvas size. */
+    public double getUpscaleFactor(Bitmap bitmap) {
         int canvasDim = 3840;
         try {canvasDim = Integer.parseInt(sharedPreferences.getString("canvasDim", "3840")); } catch (Exception ignored) {}
-        return getExtraSingleImageJSON(bitmap, Math.min(4d, (double)canvasDim / (double)Math.max(bitmap.getWidth(), bitmap.getHeight())));
+        return Math.min(4d, (double)canvasDim / (double)Math.max(bitmap.getWidth(), bitmap.getHeight()));
+    }
+
+    /* The number of upscale tiles sent at once, over all servers. */
+    public int getUpscaleParallelism() {
+        try {
+            return Math.max(1, Integer.parseInt(sharedPreferences.getString("upscaleParallelism", "4")));
+        } catch (NumberFormatException e) {
+            return 4;
+        }
     }
 
     public JSONObject getExtraSingleImageJSON(Bitmap bitmap, double scale) {
@@ -146,7 +236,7 @@ public class SdApiHelper {
             jsonObject.put("upscaler_2", "None");
             jsonObject.put("extras_upscaler_2_visibility", 0);
             jsonObject.put("upscale_first", true);
-            jsonObject.put("image", Utils.jpg2Base64String(bitmap));
+            jsonObject.put("image", ImagePart.jpg(bitmap));
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -162,7 +252,7 @@ public class SdApiHelper {
             if (scale > 1) {
                 resultBm = Bitmap.createScaledBitmap(bitmap, (int)Math.round(bitmap.getWidth() / scale), (int)Math.round(bitmap.getHeight() / scale), true);
             }
-            jsonObject.put("image", Utils.jpg2Base64String(resultBm));
+            jsonObject.put("image", ImagePart.jpg(resultBm));
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -202,6 +292,7 @@ public class SdApiHelper {
                     Sketch.CN_MODE_TXT_SDXL_TURBO.equals(cnMode) ? SdParam.SD_MODEL_SDXL_TURBO : SdParam.SD_MODEL_V1;
         }
         if (!param.type.equals(SdParam.SD_MODE_TYPE_INPAINT)) { param.inpaintPartial = 0; }
+        if (!param.type.equals(SdParam.SD_MODE_TYPE_IMG2IMG)) { param.tiled = 0; }
         if (param.sdSize == 0) { param.sdSize = sharedPreferences.getInt("sdImageSize", 768); }
         if (param.cfgScale == 0d) {
             try {
@@ -281,26 +372,112 @@ public class SdApiHelper {
         return sharedPreferences.getString("negativePrompt", "") + ", " + prompt;
     }
 
+    public String getPreferredModel(SdParam param) {
+        return param.model.equals(SdParam.SD_MODEL_INPAINT) ? sharedPreferences.getString("sdInpaintModel", ""):
+                param.model.equals(SdParam.SD_MODEL_SDXL_BASE) ? sharedPreferences.getString("sdxlBaseModel", ""):
+                param.model.equals(SdParam.SD_MODEL_SDXL_TURBO) ? sharedPreferences.getString("sdxlTurboModel", ""):
+                param.model.equals(SdParam.SD_MODEL_SDXL_INPAINT) ? sharedPreferences.getString("sdxlInpaintModel", ""):
+                sharedPreferences.getString("sdModelCheckpoint", "");
+    }
+
+    public boolean isModelAvailable(String title) {
+        String models = getCachedMetadata("/sdapi/v1/sd-models");
+        if (models == null) return true;
+        try {
+            JSONArray jsonArray = new JSONArray(models);
+            for (int i = 0; i < jsonArray.length(); i++) {
+                if (title.equals(jsonArray.getJSONObject(i).optString("title"))) return true;
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return true;
+        }
+        return false;
+    }
+
+    private void putOverrideSettings(JSONObject jsonObject, SdParam param) throws JSONException {
+        JSONObject overrideSettings = new JSONObject();
+        String preferredModel = getPreferredModel(param);
+        if (!preferredModel.isEmpty() && isModelAvailable(preferredModel)) {
+            overrideSettings.put("sd_model_checkpoint", preferredModel);
+        }
+        overrideSettings.put("CLIP_stop_at_last_layers", param.clipSkip);
+        jsonObject.put("override_settings", overrideSettings);
+        jsonObject.put("override_settings_restore_afterwards", "true".equals(sharedPreferences.getString("restoreSettingsAfterwards", "false")));
+    }
+
+    /* The "fixedSeed" setting, -1 for a random seed. */
+    public long getSeed() {
+        try {
+            return Math.max(-1, Long.parseLong(sharedPreferences.getString("fixedSeed", "-1").trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return getMaxBatchSize(sharedPreferences);
+    }
+
+    public static int getMaxBatchSize(SharedPreferences sharedPreferences) {
+        try {
+            return Math.max(1, Integer.parseInt(sharedPreferences.getString("maxBatchSize", "1")));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    public static void putBatchSize(JSONObject jsonObject, int numGen, int maxBatchSize) throws JSONException {
+        int batchSize = 1;
+        for (int i = Math.min(numGen, maxBatchSize); i > 1; i--) {
+            if (numGen % i == 0) {
+                batchSize = i;
+                break;
+            }
+        }
+        jsonObject.put("batch_size", batchSize);
+        jsonObject.put("n_iter", Math.max(1, numGen / batchSize));
+    }
+
+    /* Drawings for line based modules go as thresholded black and white. */
+    private static ImagePart getCnInputPart(CnParam cnparam, Bitmap cnImage) {
+        if (SdParam.SD_INPUT_IMAGE_SKETCH.equals(cnparam.cnInputImage) && cnparam.isLineBased()) {
+            return ImagePart.lineArt(cnImage);
+        }
+        return ImagePart.forUpload(cnImage, UploadCodecPolicy.INPUT_CONTROL);
+    }
+
+    /* The width and height of the generation, the inpaint area for partial inpainting. */
+    public static int[] getTargetSize(SdParam param, Sketch mCurrentSketch) {
+        Bitmap bg = mCurrentSketch.getImgBackground();
+        if (!SdParam.SD_MODE_TYPE_TXT2IMG.equals(param.type) && param.inpaintPartial == SdParam.INPAINT_PARTIAL) {
+            RectF inpaintRect = mCurrentSketch.getRectInpaint(param.sdSize);
+            if (inpaintRect.width() >= inpaintRect.height()) {
+                double h = param.sdSize / (inpaintRect.width() - 1) * (inpaintRect.height() - 1);
+                return new int[] {param.sdSize, (int) (64 * Math.round(h / 64))};
+            } else {
+                double w = param.sdSize / (inpaintRect.height() - 1) * (inpaintRect.width() - 1);
+                return new int[] {(int) (64 * Math.round(w / 64)), param.sdSize};
+            }
+        }
+        int width = bg.getHeight() > bg.getWidth() ? (int) Utils.getShortSize(bg, param.sdSize) : param.sdSize;
+        int height = bg.getHeight() < bg.getWidth() ? (int) Utils.getShortSize(bg, param.sdSize) : param.sdSize;
+        return new int[] {width, height};
+    }
+
     public JSONObject getControlnetTxt2imgJSON(SdParam param, Sketch mCurrentSketch) {
         JSONObject jsonObject = new JSONObject();
         try {
             jsonObject.put("prompt", getPrompt(mCurrentSketch));
-            jsonObject.put("seed", -1);
+            jsonObject.put("seed", getSeed());
             jsonObject.put("batch_size", 1);
             jsonObject.put("n_iter", 1);
             jsonObject.put("steps", param.steps);
             jsonObject.put("cfg_scale", param.cfgScale);
 
-            if (mCurrentSketch.getImgBackground().getHeight() > mCurrentSketch.getImgBackground().getWidth()) {
-                jsonObject.put("width", Utils.getShortSize(mCurrentSketch.getImgBackground(), param.sdSize));
-            } else {
-                jsonObject.put("width", param.sdSize);
-            }
-            if (mCurrentSketch.getImgBackground().getHeight() < mCurrentSketch.getImgBackground().getWidth()) {
-                jsonObject.put("height", Utils.getShortSize(mCurrentSketch.getImgBackground(), param.sdSize));
-            } else {
-                jsonObject.put("height", param.sdSize);
-            }
+            int[] targetSize = getTargetSize(param, mCurrentSketch);
+            jsonObject.put("width", targetSize[0]);
+            jsonObject.put("height", targetSize[1]);
 
             jsonObject.put("restore_faces", false);
             jsonObject.put("tiling", false);
@@ -309,6 +486,7 @@ public class SdApiHelper {
             jsonObject.put("negative_prompt", getNegPrompt(mCurrentSketch));
             jsonObject.put("sampler_name", param.sampler);
             jsonObject.put("save_images", false);
+            putOverrideSettings(jsonObject, param);
 
             if (param.cn != null) {
                 JSONObject alwayson_scripts = new JSONObject();
@@ -318,10 +496,10 @@ public class SdApiHelper {
                     if (cnparam.cnInputImage != null) {
                         // ControlNet Args
                         JSONObject cnArgObject = new JSONObject();
-                        cnArgObject.put("input_image", Utils.jpg2Base64String(
-                                cnparam.cnInputImage.equals(SdParam.SD_INPUT_IMAGE_SKETCH) ? mCurrentSketch.getImgPreview() :
-                                        cnparam.cnInputImage.equals(SdParam.SD_INPUT_IMAGE_REF) ? mCurrentSketch.getImgReference() :
-                                                mCurrentSketch.getImgBackground()));
+                        Bitmap cnImage = cnparam.cnInputImage.equals(SdParam.SD_INPUT_IMAGE_SKETCH) ? mCurrentSketch.getImgPreview() :
+                                cnparam.cnInputImage.equals(SdParam.SD_INPUT_IMAGE_REF) ? mCurrentSketch.getImgReference() :
+                                        mCurrentSketch.getImgBackground();
+                        cnArgObject.put("input_image", getCnInputPart(cnparam, UploadResampler.resample(cnImage, targetSize[0], targetSize[1], cnparam.cnResizeMode)));
                         //cnArgObject.put("mask", "");
                         cnArgObject.put("module", cnparam.cnModule);
                         if (cnparam.cnModelKey != null && !"None".equals(sharedPreferences.getString(cnparam.cnModelKey, "None"))) {
@@ -359,6 +537,7 @@ public class SdApiHelper {
         JSONObject jsonObject = new JSONObject();
         boolean isInpaint = param.type.equals(SdParam.SD_MODE_TYPE_INPAINT);
         try {
+            int[] targetSize = getTargetSize(param, mCurrentSketch);
             JSONArray init_images = new JSONArray();
 
             Bitmap baseImage;
@@ -384,7 +563,7 @@ public class SdApiHelper {
                         param.baseImage.equals(SdParam.SD_INPUT_IMAGE_BG_REF) ? mCurrentSketch.getImgBgRef() : mCurrentSketch.getImgBackground();
             }
 
-            init_images.put(Utils.jpg2Base64String(baseImage));
+            init_images.put(ImagePart.forUpload(UploadResampler.resample(baseImage, targetSize[0], targetSize[1], UploadResampler.MODE_CROP), UploadCodecPolicy.INPUT_PHOTO));
             jsonObject.put("init_images", init_images);
             jsonObject.put("resize_mode", 1);
 
@@ -397,7 +576,7 @@ public class SdApiHelper {
                     Bitmap resizedBm = Bitmap.createScaledBitmap(mCurrentSketch.getImgInpaintMask(), mCurrentSketch.getImgBackground().getWidth(), mCurrentSketch.getImgBackground().getHeight(), false);
                     imgInpaintMask = Utils.extractBitmap(resizedBm, mCurrentSketch.getRectInpaint(param.sdSize));
                 }
-                jsonObject.put("mask", Utils.png2Base64String(imgInpaintMask));
+                jsonObject.put("mask", ImagePart.mask(UploadResampler.resample(imgInpaintMask, targetSize[0], targetSize[1], UploadResampler.MODE_CROP, false)));
                 jsonObject.put("mask_blur", 10);
                 jsonObject.put("inpainting_fill", param.inpaintFill);
                 jsonObject.put("inpaint_full_res", false);
@@ -406,35 +585,11 @@ public class SdApiHelper {
                 jsonObject.put("initial_noise_multiplier", 1);
             }
             jsonObject.put("prompt", getPrompt(mCurrentSketch));
-            jsonObject.put("seed", -1);
+            jsonObject.put("seed", getSeed());
             jsonObject.put("batch_size", 1);
             jsonObject.put("n_iter", 1);
-            if (param.inpaintPartial == SdParam.INPAINT_PARTIAL) {
-                RectF inpaintRect = mCurrentSketch.getRectInpaint(param.sdSize);
-                if (inpaintRect.width() >= inpaintRect.height()) {
-                    jsonObject.put("width", param.sdSize);
-                    double h = param.sdSize / (inpaintRect.width() - 1) * (inpaintRect.height() - 1);
-                    h = 64 * Math.round(h / 64);
-                    jsonObject.put("height", h);
-                } else {
-                    jsonObject.put("height", param.sdSize);
-                    double w = param.sdSize / (inpaintRect.height() - 1) * (inpaintRect.width() - 1);
-                    w = 64 * Math.round(w / 64);
-                    jsonObject.put("width", w);
-                }
-                //Log.e("diffusionpaint", "SD Size=" + jsonObject.getDouble("width") + "X" + jsonObject.getDouble("height"));
-            } else {
-                if (mCurrentSketch.getImgBackground().getHeight() > mCurrentSketch.getImgBackground().getWidth()) {
-                    jsonObject.put("width", Utils.getShortSize(mCurrentSketch.getImgBackground(), param.sdSize));
-                } else {
-                    jsonObject.put("width", param.sdSize);
-                }
-                if (mCurrentSketch.getImgBackground().getHeight() < mCurrentSketch.getImgBackground().getWidth()) {
-                    jsonObject.put("height", Utils.getShortSize(mCurrentSketch.getImgBackground(), param.sdSize));
-                } else {
-                    jsonObject.put("height", param.sdSize);
-                }
-            }
+            jsonObject.put("width", targetSize[0]);
+            jsonObject.put("height", targetSize[1]);
             jsonObject.put("restore_faces", false);
             jsonObject.put("tiling", false);
             jsonObject.put("do_not_save_samples", true);
@@ -443,6 +598,7 @@ public class SdApiHelper {
             jsonObject.put("steps", param.steps);
             jsonObject.put("sampler_name", param.sampler);
             jsonObject.put("save_images", false);
+            putOverrideSettings(jsonObject, param);
             jsonObject.put("denoising_strength", param.denoise);
             jsonObject.put("cfg_scale", param.cfgScale);
 
@@ -471,7 +627,7 @@ public class SdApiHelper {
                             cnImage = cnparam.cnInputImage.equals(SdParam.SD_INPUT_IMAGE_SKETCH) ? mCurrentSketch.getImgPreview() : mCurrentSketch.getImgBackground();
                         }
 
-                        cnArgObject.put("input_image", Utils.jpg2Base64String(cnImage));
+                        cnArgObject.put("input_image", getCnInputPart(cnparam, UploadResampler.resample(cnImage, targetSize[0], targetSize[1], cnparam.cnResizeMode)));
                         //cnArgObject.put("mask", "");
                         cnArgObject.put("module", cnparam.cnModule);
                         if (cnparam.cnModelKey != null && !"None".equals(sharedPreferences.getString(cnparam.cnModelKey, "None"))) {
@@ -0,0 +1,241 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.content.SharedPreferences;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * A set of A1111 servers. Each one is probed with GET /sdapi/v1/progress, and a server is
+ * ejected after maxFailures consecutive failed probes or requests. It is admitted again on the
+ * next successful probe. Generations go to the healthy server with the fewest jobs, counting
+ * both the requests sent from this app and the job_count reported by the server.
+ */
+public class SdBackendPool {
+    public static final int DEFAULT_MAX_FAILURES = 2;
+    public static final long DEFAULT_CHECK_INTERVAL_SECONDS = 15;
+    private static SdBackendPool instance;
+
+    private final OkHttpClient client;
+    private final int maxFailures;
+    private final Map<String, Backend> backends = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> healthCheckTask;
+
+    public static class Backend {
+        public final String url;
+        private boolean healthy = true;
+        private int inFlight;
+        private int remoteJobs;
+        private int consecutiveFailures;
+        private String loadedCheckpoint;
+
+        Backend(String url) {
+            this.url = url;
+        }
+
+        public synchronized boolean isHealthy() { return healthy; }
+
+        public synchronized int getInFlight() { return inFlight; }
+
+        public synchronized int getLoad() { return inFlight + remoteJobs; }
+
+        synchronized void onSuccess(int jobCount) {
+            consecutiveFailures = 0;
+            healthy = true;
+            if (jobCount >= 0) remoteJobs = jobCount;
+        }
+
+        synchronized void onFailure(int maxFailures) {
+            consecutiveFailures++;
+            if (consecutiveFailures >= maxFailures) healthy = false;
+        }
+    }
+
+    public SdBackendPool(OkHttpClient client, int maxFailures) {
+        this.client = client;
+        this.maxFailures = maxFailures;
+    }
+
+    public static synchronized SdBackendPool getInstance() {
+        if (instance == null) {
+            instance = new SdBackendPool(HttpClientRegistry.getClient(3, 5), DEFAULT_MAX_FAILURES);
+        }
+        return instance;
+    }
+
+    public static SdBackendPool getInstance(SharedPreferences sharedPreferences) {
+        List<String> urls = new ArrayList<>();
+        urls.add(sharedPreferences.getString("sdServerAddress", ""));
+        for (String url : sharedPreferences.getString("sdExtraServers", "").split("[,\\s]+")) {
+            if (!urls.contains(url)) urls.add(url);
+        }
+        SdBackendPool pool = getInstance();
+        pool.setUrls(urls);
+        return pool;
+    }
+
+    public synchronized void setUrls(List<String> urls) {
+        Map<String, Backend> old = new LinkedHashMap<>(backends);
+        backends.clear();
+        for (String url : urls) {
+            if (url == null || url.trim().isEmpty()) continue;
+            url = url.trim();
+            Backend b = old.get(url);
+            backends.put(url, b != null ? b : new Backend(url));
+        }
+    }
+
+    public synchronized List<Backend> getBackends() {
+        return new ArrayList<>(backends.values());
+    }
+
+    public synchronized int size() {
+        return backends.size();
+    }
+
+    public synchronized boolean isHealthy(String url) {
+        Backend b = backends.get(url);
+        return b == null || b.isHealthy();
+    }
+
+    /* Returns the least loaded healthy server, or the first server if none is healthy. */
+    public synchronized String select() {
+        Backend best = null;
+        for (Backend b : backends.values()) {
+            if (b.isHealthy() && (best == null || b.getLoad() < best.getLoad())) {
+                best = b;
+            }
+        }
+        if (best == null && !backends.isEmpty()) {
+            best = backends.values().iterator().next();
+        }
+        return best == null ? null : best.url;
+    }
+
+    public void begin(String url) {
+        Backend b = get(url);
+        if (b == null) return;
+        synchronized (b) {
+            b.inFlight++;
+        }
+    }
+
+    public void end(String url, boolean success) {
+        Backend b = get(url);
+        if (b == null) return;
+        synchronized (b) {
+            b.inFlight = Math.max(0, b.inFlight - 1);
+        }
+        if (success) {
+            b.onSuccess(-1);
+        } else {
+            b.onFailure(maxFailures);
+        }
+    }
+
+    public String getLoadedCheckpoint(String url) {
+        Backend b = get(url);
+        if (b == null) return null;
+        synchronized (b) {
+            return b.loadedCheckpoint;
+        }
+    }
+
+    /* Records the checkpoint a request left loaded, or forgets it when it is unknown. */
+    public void onRequestDone(String url, JSONObject requestJSON) {
+        Backend b = get(url);
+        if (b == null || requestJSON == null) return;
+        JSONObject overrideSettings = requestJSON.optJSONObject("override_settings");
+        String model = overrideSettings == null ? "" : overrideSettings.optString("sd_model_checkpoint", "");
+        synchronized (b) {
+            if (requestJSON.optBoolean("override_settings_restore_afterwards", true)) {
+                if (!model.isEmpty()) b.loadedCheckpoint = null;
+            } else if (!model.isEmpty()) {
+                b.loadedCheckpoint = model;
+            }
+        }
+    }
+
+    public void setLoadedCheckpoint(String url, String model) {
+        Backend b = get(url);
+        if (b == null) return;
+        synchronized (b) {
+            b.loadedCheckpoint = model;
+        }
+    }
+
+    public void checkHealth() {
+        for (Backend b : getBackends()) {
+            checkHealth(b);
+        }
+    }
+
+    /* Probes one server right away, for a caller that cannot wait for the scheduled checks. */
+    public boolean checkHealth(String url) {
+        Backend b = get(url);
+        if (b == null) return true;
+        checkHealth(b);
+        return b.isHealthy();
+    }
+
+    private void checkHealth(Backend b) {
+        Request request = new Request.Builder().url(b.url + "/sdapi/v1/progress?skip_current_image=true").tag(String.class, "healthCheck").get().build();
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                b.onFailure(maxFailures);
+                return;
+            }
+            int jobCount = 0;
+            try {
+                JsonObject progress = JsonParser.parseString(body.string()).getAsJsonObject();
+                if (progress.has("state") && progress.getAsJsonObject("state").has("job_count")) {
+                    jobCount = Math.max(0, progress.getAsJsonObject("state").get("job_count").getAsInt());
+                }
+            } catch (Exception ignored) {}
+            b.onSuccess(jobCount);
+        } catch (Exception e) {
+            b.onFailure(maxFailures);
+        }
+    }
+
+    public synchronized void startHealthChecks(long intervalSeconds) {
+        if (healthCheckTask != null || backends.size() < 2) return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "SdBackendPool");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        healthCheckTask = scheduler.scheduleWithFixedDelay(this::checkHealth, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopHealthChecks() {
+        if (healthCheckTask != null) {
+            healthCheckTask.cancel(false);
+            healthCheckTask = null;
+        }
+    }
+
+    private synchronized Backend get(String url) {
+        return backends.get(url);
+    }
+}
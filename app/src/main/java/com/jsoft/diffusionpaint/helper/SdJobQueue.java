@@ -0,0 +1,69 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.gson.Gson;
+import com.jsoft.diffusionpaint.ViewSdImageService;
+import com.jsoft.diffusionpaint.dto.SdJob;
+import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.dto.Sketch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/*
+ * Background generation queue. The request payload is written to a file when the job is added,
+ * so the job can be sent again after the process is restarted. The jobs are processed by
+ * ViewSdImageService.
+ */
+public class SdJobQueue {
+
+    public static SdJob enqueue(Context context, SdApiHelper sdApiHelper, Sketch sketch, int numGen, int priority) throws IOException, JSONException {
+        SdParam param = sdApiHelper.getSdCnParm(sketch.getCnMode());
+        Utils.prepareSketchForMode(sketch, param);
+        String requestType;
+        JSONObject jsonObject;
+        if (param.type.equals(SdParam.SD_MODE_TYPE_TXT2IMG)) {
+            requestType = "txt2img";
+            jsonObject = sdApiHelper.getControlnetTxt2imgJSON(param, sketch);
+        } else {
+            requestType = "img2img";
+            jsonObject = sdApiHelper.getControlnetImg2imgJSON(param, sketch);
+        }
+        SdApiHelper.putBatchSize(jsonObject, numGen, sdApiHelper.getMaxBatchSize());
+
+        File dir = new File(context.getFilesDir(), "sd_jobs");
+        if (!dir.exists()) dir.mkdirs();
+        File payload = File.createTempFile("job_", ".json", dir);
+        try (BufferedSink sink = Okio.buffer(Okio.sink(payload))) {
+            new SdRequestBody(jsonObject).writeTo(sink);
+        } catch (IOException e) {
+            payload.delete();
+            throw e;
+        }
+
+        SdJob job = new SdJob();
+        job.sketchId = sketch.getId();
+        job.cnMode = sketch.getCnMode();
+        job.requestType = requestType;
+        job.payloadPath = payload.getAbsolutePath();
+        job.sdParam = new Gson().toJson(param);
+        JSONObject overrideSettings = jsonObject.optJSONObject("override_settings");
+        job.model = overrideSettings == null ? "" : overrideSettings.optString("sd_model_checkpoint", "");
+        job.priority = priority;
+        job.nextRunTime = System.currentTimeMillis();
+        new PaintDb(context).insertJob(job);
+
+        Intent intent = new Intent(context, ViewSdImageService.class);
+        intent.setAction(ViewSdImageService.ACTION_PROCESS_QUEUE);
+        context.startService(intent);
+        return job;
+    }
+}
@@ -0,0 +1,208 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.app.Activity;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Cache for the server metadata lists (models, samplers, upscalers, loras, styles, ControlNet
+ * models), keyed by server address + API path. Entries older than the TTL are still served but
+ * should be revalidated, unless the TTL is 0: then every request goes to the server. Concurrent
+ * requests for the same key are coalesced into a single HTTP call. Every server has a snapshot
+ * file on disk, so the lists are available at cold start before the server answers. Snapshots
+ * are written on a background thread, one after the other.
+ */
+public class SdMetadataCache {
+    public static final long DEFAULT_TTL_MINUTES = 10;
+    private static long ttlMillis = DEFAULT_TTL_MINUTES * 60 * 1000;
+    private static final Map<String, Map<String, Entry>> servers = new HashMap<>();
+    private static final Map<String, List<Waiter>> inFlight = new HashMap<>();
+    private static final Set<String> loadedServers = new HashSet<>();
+    private static File snapshotDir;
+    private static final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "metadata-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Entry {
+        final String body;
+        final long fetchTime;
+
+        Entry(String body, long fetchTime) {
+            this.body = body;
+            this.fetchTime = fetchTime;
+        }
+    }
+
+    public static class Waiter {
+        final Activity activity;
+        final SdApiResponseListener listener;
+        final String requestType;
+
+        public Waiter(Activity activity, SdApiResponseListener listener, String requestType) {
+            this.activity = activity;
+            this.listener = listener;
+            this.requestType = requestType;
+        }
+    }
+
+    public static synchronized void setTtlMinutes(long minutes) {
+        ttlMillis = minutes * 60 * 1000;
+    }
+
+    public static synchronized void loadSnapshot(File dir, String server) {
+        snapshotDir = dir;
+        if (!loadedServers.add(server)) return;
+        File file = getSnapshotFile(server);
+        if (!file.exists()) return;
+        try {
+            JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            Map<String, Entry> entries = getEntries(server);
+            Iterator<String> urls = snapshot.keys();
+            while (urls.hasNext()) {
+                String url = urls.next();
+                if (entries.containsKey(url)) continue;
+                JSONObject e = snapshot.getJSONObject(url);
+                entries.put(url, new Entry(e.getString("body"), e.getLong("time")));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+
+    public static synchronized String get(String server, String url) {
+        Entry entry = getEntries(server).get(url);
+        return entry == null ? null : entry.body;
+    }
+
+    /* False when the TTL is 0, a cached list is then only a fallback for the server. */
+    public static synchronized boolean servesStale() {
+        return ttlMillis > 0;
+    }
+
+    public static synchronized boolean isFresh(String server, String url) {
+        Entry entry = getEntries(server).get(url);
+        return entry != null && System.currentTimeMillis() - entry.fetchTime <= ttlMillis;
+    }
+
+    /**
+     * Registers a waiter for the key. Returns true if it is the first one, in which case the
+     * caller is responsible for sending the request and calling complete() or fail().
+     * A null waiter is a background revalidation which is not notified.
+     */
+    public static synchronized boolean register(String server, String url, Waiter waiter) {
+        String key = server + url;
+        List<Waiter> waiters = inFlight.get(key);
+        boolean first = waiters == null;
+        if (first) {
+            waiters = new ArrayList<>();
+            inFlight.put(key, waiters);
+        }
+        if (waiter != null) waiters.add(waiter);
+        return first;
+    }
+
+    public static void complete(String server, String url, String body) {
+        List<Waiter> waiters;
+        synchronized (SdMetadataCache.class) {
+            getEntries(server).put(url, new Entry(body, System.currentTimeMillis()));
+            waiters = inFlight.remove(server + url);
+            saveSnapshot(server);
+        }
+        if (waiters == null) return;
+        for (Waiter w : waiters) {
+            w.activity.runOnUiThread(() -> w.listener.onSdApiResponse(w.requestType, body));
+        }
+    }
+
+    public static void fail(String server, String url, String errorMessage) {
+        List<Waiter> waiters;
+        synchronized (SdMetadataCache.class) {
+            waiters = inFlight.remove(server + url);
+        }
+        if (waiters == null) return;
+        for (Waiter w : waiters) {
+            w.activity.runOnUiThread(() -> w.listener.onSdApiFailure(w.requestType, errorMessage));
+        }
+    }
+
+    public static synchronized void invalidate(String url) {
+        for (String server : servers.keySet()) {
+            if (servers.get(server).remove(url) != null) {
+                saveSnapshot(server);
+            }
+        }
+    }
+
+    public static synchronized void clear() {
+        servers.clear();
+    }
+
+    private static Map<String, Entry> getEntries(String server) {
+        Map<String, Entry> entries = servers.get(server);
+        if (entries == null) {
+            entries = new HashMap<>();
+            servers.put(server, entries);
+        }
+        return entries;
+    }
+
+    private static void saveSnapshot(String server) {
+        if (snapshotDir == null) return;
+        File file = getSnapshotFile(server);
+        Map<String, Entry> entries = new HashMap<>(getEntries(server));
+        snapshotWriter.execute(() -> writeSnapshot(file, entries));
+    }
+
+    private static void writeSnapshot(File file, Map<String, Entry> entries) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            JSONObject snapshot = new JSONObject();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                JSONObject entry = new JSONObject();
+                entry.put("time", e.getValue().fetchTime);
+                entry.put("body", e.getValue().body);
+                snapshot.put(e.getKey(), entry);
+            }
+            out.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+        }
+    }
+
+    private static File getSnapshotFile(String server) {
+        String name;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(server.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) sb.append(String.format("%02x", digest[i]));
+            name = sb.toString();
+        } catch (Exception e) {
+            name = Integer.toHexString(server.hashCode());
+        }
+        return new File(snapshotDir, "metadata_" + name + ".json");
+    }
+}
@@ -0,0 +1,111 @@
+package com.jsoft.diffusionpaint.helper;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/*
+ * Writes a request JSONObject directly into the OkHttp sink. ImagePart values are compressed
+ * and base64 encoded on the fly, so no full copy of the payload is built in memory. The codecs
+ * of the written images are kept for NetworkStats, which finds the body by its request tag.
+ * NetworkStats only takes the upload time of a body as a throughput sample when no image had
+ * to be encoded while it was written.
+ */
+public class SdRequestBody extends RequestBody {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private final JSONObject jsonObject;
+    private final List<String> imageCodecs = new ArrayList<>();
+    private boolean preEncoded = true;
+
+    public SdRequestBody(JSONObject jsonObject) {
+        this.jsonObject = jsonObject;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        synchronized (imageCodecs) {
+            imageCodecs.clear();
+            preEncoded = true;
+        }
+        try {
+            writeValue(sink, jsonObject);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /* The codecs of the images written by the last writeTo. */
+    public List<String> getImageCodecs() {
+        synchronized (imageCodecs) {
+            return new ArrayList<>(imageCodecs);
+        }
+    }
+
+    /* True when all images of the last writeTo came from EncodedImageCache. */
+    public boolean isPreEncoded() {
+        synchronized (imageCodecs) {
+            return preEncoded;
+        }
+    }
+
+    private void writeValue(BufferedSink sink, Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            sink.writeByte('{');
+            Iterator<String> keys = object.keys();
+            boolean first = true;
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!first) sink.writeByte(',');
+                first = false;
+                sink.writeUtf8(JSONObject.quote(key));
+                sink.writeByte(':');
+                writeValue(sink, object.opt(key));
+            }
+            sink.writeByte('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sink.writeByte('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) sink.writeByte(',');
+                writeValue(sink, array.opt(i));
+            }
+            sink.writeByte(']');
+        } else if (value instanceof ImagePart) {
+            ImagePart imagePart = (ImagePart) value;
+            sink.writeByte('"');
+            boolean cached = imagePart.writeBase64(sink.outputStream());
+            sink.writeByte('"');
+            if (imagePart.getBitmap() != null) {
+                synchronized (imageCodecs) {
+                    imageCodecs.add(imagePart.getCodecName());
+                    if (!cached) preEncoded = false;
+                }
+            }
+        } else if (value == null || value == JSONObject.NULL) {
+            sink.writeUtf8("null");
+        } else if (value instanceof Boolean) {
+            sink.writeUtf8(value.toString());
+        } else if (value instanceof Number) {
+            sink.writeUtf8(JSONObject.numberToString((Number) value));
+        } else {
+            sink.writeUtf8(JSONObject.quote(value.toString()));
+        }
+    }
+}
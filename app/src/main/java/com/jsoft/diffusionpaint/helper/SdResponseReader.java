@@ -0,0 +1,193 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/*
+ * Minimal pull parser for the txt2img / img2img / extra-single-image responses. Base64 image
+ * strings are decoded chunk by chunk into temp files, so the response is never held as a String.
+ */
+public class SdResponseReader {
+    private static final ByteString STRING_SPECIAL = ByteString.encodeUtf8("\"\\");
+    private final BufferedSource source;
+
+    public SdResponseReader(BufferedSource source) {
+        this.source = source;
+    }
+
+    public static SdImageResponse readImageResponse(BufferedSource source, File tempDir) throws IOException {
+        SdResponseReader reader = new SdResponseReader(source);
+        SdImageResponse response = new SdImageResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("images".equals(name) && reader.peek() == '[') {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == '"') {
+                        response.images.add(reader.nextBase64File(tempDir));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else if ("image".equals(name) && reader.peek() == '"') {
+                response.images.add(reader.nextBase64File(tempDir));
+            } else if ("info".equals(name) && reader.peek() == '"') {
+                response.info = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    public void beginObject() throws IOException { expect('{'); }
+
+    public void endObject() throws IOException { expect('}'); }
+
+    public void beginArray() throws IOException { expect('['); }
+
+    public void endArray() throws IOException { expect(']'); }
+
+    public boolean hasNext() throws IOException {
+        byte b = peek();
+        if (b == ',') {
+            source.readByte();
+            return true;
+        }
+        return b != '}' && b != ']';
+    }
+
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    public byte peek() throws IOException {
+        while (true) {
+            source.require(1);
+            byte b = source.getBuffer().getByte(0);
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                source.readByte();
+            } else {
+                return b;
+            }
+        }
+    }
+
+    /* Bytes are decoded only up to a quote or an escape, so a character split between segments stays whole. */
+    public String nextString() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        Buffer bytes = new Buffer();
+        Buffer buffer = source.getBuffer();
+        while (true) {
+            if (buffer.size() == 0) source.require(1);
+            long i = buffer.indexOfElement(STRING_SPECIAL);
+            if (i == -1) {
+                bytes.write(buffer, buffer.size());
+                continue;
+            }
+            bytes.write(buffer, i);
+            sb.append(bytes.readUtf8());
+            if (buffer.readByte() == '"') return sb.toString();
+            sb.append(readEscape());
+        }
+    }
+
+    public void nextBase64(OutputStream out) throws IOException {
+        expect('"');
+        Buffer buffer = source.getBuffer();
+        while (true) {
+            if (buffer.size() == 0) source.require(1);
+            long i = buffer.indexOfElement(STRING_SPECIAL);
+            if (i == -1) {
+                buffer.writeTo(out, buffer.size());
+                continue;
+            }
+            buffer.writeTo(out, i);
+            if (buffer.readByte() == '"') return;
+            char c = readEscape();
+            if (c < 128) out.write(c);
+        }
+    }
+
+    public File nextBase64File(File dir) throws IOException {
+        File file = File.createTempFile("sd_result_", ".img", dir);
+        try (OutputStream out = new Base64OutputStream(new FileOutputStream(file), Base64.DEFAULT, false)) {
+            nextBase64(out);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    public void skipValue() throws IOException {
+        byte b = peek();
+        if (b == '{' || b == '[') {
+            source.readByte();
+            while (hasNext()) {
+                if (b == '{') nextName();
+                skipValue();
+            }
+            expect(b == '{' ? '}' : ']');
+        } else if (b == '"') {
+            expect('"');
+            Buffer buffer = source.getBuffer();
+            while (true) {
+                if (buffer.size() == 0) source.require(1);
+                long i = buffer.indexOfElement(STRING_SPECIAL);
+                if (i == -1) {
+                    buffer.clear();
+                    continue;
+                }
+                buffer.skip(i);
+                if (buffer.readByte() == '"') return;
+                readEscape();
+            }
+        } else {
+            while (true) {
+                byte c = peek();
+                if (c == ',' || c == '}' || c == ']') return;
+                source.readByte();
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        byte b = source.readByte();
+        switch (b) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'u': return (char) Integer.parseInt(source.readUtf8(4), 16);
+            default: return (char) b;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        byte b = peek();
+        if (b != c) {
+            throw new IOException("Malformed response: expected '" + c + "' but found '" + (char) b + "'");
+        }
+        source.readByte();
+    }
+}
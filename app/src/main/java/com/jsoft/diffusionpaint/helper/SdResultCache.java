@@ -0,0 +1,247 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.content.Context;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Results of txt2img / img2img requests with a fixed seed, kept on disk so that running the same
+ * request again comes back at once without the GPU. The key is a SHA-256 over a canonical form of
+ * the request: keys sorted, settings that do not change the images left out, images replaced by
+ * the hash of their pixels and the checkpoint that will actually run. Requests with a random seed
+ * get no key. Each entry is a directory with the images and the info of the response, the least
+ * recently used entries are deleted once the cache is larger than its limit.
+ */
+public class SdResultCache {
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final Set<String> IGNORED_KEYS = new HashSet<>(Arrays.asList(
+            "override_settings_restore_afterwards", "save_images", "do_not_save_samples", "do_not_save_grid", "sd_model_checkpoint"));
+    private static final String INFO_FILE = "info.json";
+    private static SdResultCache instance;
+
+    private final File dir;
+    private final long maxBytes;
+    private long hitCount;
+    private long missCount;
+
+    public SdResultCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized SdResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new SdResultCache(new File(context.getCacheDir(), "sd_results"), DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /* Null when the request has a random seed, or cannot be cached. */
+    public static String getKey(String requestType, JSONObject request, String model) {
+        if (request == null || request.optLong("seed", -1) < 0) return null;
+        StringBuilder sb = new StringBuilder();
+        sb.append(requestType).append('|').append(model == null ? "" : model).append('|');
+        try {
+            appendCanonical(sb, request);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (JSONException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /* The checkpoint a request runs with, its override or what the server has loaded. */
+    public static String getEffectiveModel(JSONObject request, String backendUrl) {
+        JSONObject overrideSettings = request.optJSONObject("override_settings");
+        String model = overrideSettings == null ? "" : overrideSettings.optString("sd_model_checkpoint", "");
+        if (model.isEmpty() && backendUrl != null) {
+            String loaded = SdBackendPool.getInstance().getLoadedCheckpoint(backendUrl);
+            if (loaded != null) model = loaded;
+        }
+        return model;
+    }
+
+    private static void appendCanonical(StringBuilder sb, Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>();
+            Iterator<String> iterator = object.keys();
+            while (iterator.hasNext()) keys.add(iterator.next());
+            Collections.sort(keys);
+            sb.append('{');
+            for (String key : keys) {
+                if (IGNORED_KEYS.contains(key)) continue;
+                sb.append(JSONObject.quote(key)).append(':');
+                appendCanonical(sb, object.opt(key));
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                appendCanonical(sb, array.opt(i));
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (value instanceof ImagePart) {
+            ImagePart imagePart = (ImagePart) value;
+            sb.append("image:").append(imagePart.getBitmap() == null ? "" : EncodedImageCache.getInstance().getContentHash(imagePart.getBitmap()));
+        } else if (value instanceof Number) {
+            sb.append(JSONObject.numberToString((Number) value));
+        } else if (value == null || value == JSONObject.NULL) {
+            sb.append("null");
+        } else if (value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            sb.append(JSONObject.quote(value.toString()));
+        }
+    }
+
+    /* A copy of the cached response with its images in tempDir, or null. */
+    public synchronized SdImageResponse get(String key, File tempDir) {
+        if (key == null) return null;
+        File entry = new File(dir, key);
+        File info = new File(entry, INFO_FILE);
+        if (!info.exists()) {
+            missCount++;
+            return null;
+        }
+        SdImageResponse response = new SdImageResponse();
+        try {
+            response.info = new String(readAll(info), StandardCharsets.UTF_8);
+            if (response.info.isEmpty()) response.info = null;
+            for (int i = 0; ; i++) {
+                File image = new File(entry, i + ".img");
+                if (!image.exists()) break;
+                File copy = File.createTempFile("sd_", ".img", tempDir);
+                copy(image, copy);
+                response.images.add(copy);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            response.deleteImages();
+            deleteEntry(entry);
+            missCount++;
+            return null;
+        }
+        if (response.images.isEmpty()) {
+            deleteEntry(entry);
+            missCount++;
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hitCount++;
+        return response;
+    }
+
+    public synchronized void put(String key, SdImageResponse response) {
+        if (key == null || response == null || response.images.isEmpty()) return;
+        File entry = new File(dir, key);
+        deleteEntry(entry);
+        if (!entry.mkdirs()) return;
+        try {
+            for (int i = 0; i < response.images.size(); i++) {
+                copy(response.images.get(i), new File(entry, i + ".img"));
+            }
+            // the info is written last, an entry without it is incomplete
+            try (OutputStream out = new FileOutputStream(new File(entry, INFO_FILE))) {
+                out.write((response.info == null ? "" : response.info).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteEntry(entry);
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] entries = dir.listFiles();
+        if (entries == null) return;
+        Arrays.sort(entries, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        long total = 0;
+        for (File entry : entries) {
+            total += getSize(entry);
+            if (total > maxBytes) deleteEntry(entry);
+        }
+    }
+
+    public synchronized long getSize() {
+        return getSize(dir);
+    }
+
+    public synchronized long getHitCount() { return hitCount; }
+
+    public synchronized long getMissCount() { return missCount; }
+
+    public synchronized void clear() {
+        File[] entries = dir.listFiles();
+        if (entries == null) return;
+        for (File entry : entries) deleteEntry(entry);
+    }
+
+    private static long getSize(File file) {
+        if (file.isFile()) return file.length();
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) size += getSize(f);
+        }
+        return size;
+    }
+
+    private static void deleteEntry(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        entry.delete();
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return read == data.length ? data : Arrays.copyOf(data, read);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        try (InputStream in = new FileInputStream(from); OutputStream out = new FileOutputStream(to)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        }
+    }
+}
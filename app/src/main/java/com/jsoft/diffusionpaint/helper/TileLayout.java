@@ -0,0 +1,177 @@
+package com.jsoft.diffusionpaint.helper;
+
+/*
+ * Splits a canvas into overlapping tiles for tiled rendering. Tiles are tileSize wide and high,
+ * rounded down to whole 64 px blocks, and the last tile of a row or column is moved back inside
+ * the canvas like the inpaint rect of a sketch. The tiles are spread evenly, so every overlap is
+ * at least the requested one.
+ *
+ * Each tile has a weight that ramps up from its inner edges over the overlap. blend() mixes a
+ * finished tile into the canvas by its share of the weight of the tiles placed so far, so the
+ * result is the weighted average of all tiles whatever order they finish in. The same holds for
+ * a band of rows at a time, when the canvas is written out as it is blended.
+ */
+public class TileLayout {
+    public static final int BLOCK_SIZE = 64;
+    private static final int LATENT_SIZE = 8;
+
+    private final int width;
+    private final int height;
+    private final int feather;
+    private final int[] colStart;
+    private final int[] colEnd;
+    private final int[] rowStart;
+    private final int[] rowEnd;
+
+    public TileLayout(int width, int height, int tileSize, int overlap) {
+        int size = Math.max(BLOCK_SIZE, tileSize / BLOCK_SIZE * BLOCK_SIZE);
+        overlap = Math.max(0, Math.min(overlap, size / 2));
+        this.width = width;
+        this.height = height;
+        this.feather = Math.max(1, overlap);
+        colStart = getStarts(width, size, overlap);
+        colEnd = getEnds(colStart, width, size);
+        rowStart = getStarts(height, size, overlap);
+        rowEnd = getEnds(rowStart, height, size);
+    }
+
+    private TileLayout(int width, int height, int feather, int[] colStart, int[] colEnd, int[] rowStart, int[] rowEnd) {
+        this.width = width;
+        this.height = height;
+        this.feather = feather;
+        this.colStart = colStart;
+        this.colEnd = colEnd;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+    }
+
+    /* The same tiles on the canvas scaled by factor, where the tiles of an upscaler land. */
+    public TileLayout scale(double factor) {
+        int scaledWidth = (int) Math.round(width * factor);
+        int scaledHeight = (int) Math.round(height * factor);
+        return new TileLayout(scaledWidth, scaledHeight, Math.max(1, (int) Math.round(feather * factor)),
+                scale(colStart, factor, scaledWidth), scale(colEnd, factor, scaledWidth),
+                scale(rowStart, factor, scaledHeight), scale(rowEnd, factor, scaledHeight));
+    }
+
+    private static int[] scale(int[] values, double factor, int length) {
+        int[] scaled = new int[values.length];
+        for (int i = 0; i < values.length; i++) scaled[i] = Math.min(length, (int) Math.round(values[i] * factor));
+        return scaled;
+    }
+
+    private static int[] getStarts(int length, int size, int overlap) {
+        if (length <= size) return new int[] {0};
+        int count = 1 + (int) Math.ceil((double) (length - size) / (size - overlap));
+        int[] starts = new int[count];
+        for (int i = 1; i < count - 1; i++) {
+            starts[i] = (int) Math.round((double) i * (length - size) / (count - 1) / LATENT_SIZE) * LATENT_SIZE;
+        }
+        starts[count - 1] = length - size;
+        return starts;
+    }
+
+    private static int[] getEnds(int[] starts, int length, int size) {
+        int[] ends = new int[starts.length];
+        for (int i = 0; i < starts.length; i++) ends[i] = Math.min(length, starts[i] + size);
+        return ends;
+    }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+
+    public int getColumns() { return colStart.length; }
+
+    public int getRows() { return rowStart.length; }
+
+    public int getTileCount() { return colStart.length * rowStart.length; }
+
+    /* {left, top, right, bottom} of a tile, tiles are numbered row by row. */
+    public int[] getTileRect(int index) {
+        int col = index % colStart.length;
+        int row = index / colStart.length;
+        return new int[] {colStart[col], rowStart[row], colEnd[col], rowEnd[row]};
+    }
+
+    private double getWeight(int start, int end, int length, int pos) {
+        double weight = 1d;
+        if (start > 0) weight = Math.min(weight, (pos - start + 0.5) / feather);
+        if (end < length) weight = Math.min(weight, (end - pos - 0.5) / feather);
+        return weight;
+    }
+
+    /*
+     * Mixes the pixels of a finished tile into canvasPixels, the canvas pixels under the tile
+     * rect, and marks the tile in placed. Both arrays are rows of the tile rect width.
+     */
+    public void blend(int index, int[] tilePixels, int[] canvasPixels, boolean[] placed) {
+        int[] rect = getTileRect(index);
+        blend(index, tilePixels, canvasPixels, placed, rect[1], rect[3]);
+    }
+
+    /* As blend(), for the canvas rows from top to bottom of the tile only. */
+    public void blend(int index, int[] tilePixels, int[] canvasPixels, boolean[] placed, int top, int bottom) {
+        placed[index] = true;
+        int[] rect = getTileRect(index);
+        int tileWidth = rect[2] - rect[0];
+        int tileHeight = bottom - top;
+        int col = index % colStart.length;
+        int row = index / colStart.length;
+
+        int[][] colsAt = new int[tileWidth][];
+        double[][] weightsX = new double[tileWidth][];
+        for (int x = 0; x < tileWidth; x++) {
+            colsAt[x] = getCovering(colStart, colEnd, rect[0] + x);
+            weightsX[x] = getWeights(colStart, colEnd, colsAt[x], width, rect[0] + x);
+        }
+        for (int y = 0; y < tileHeight; y++) {
+            int[] rowsAt = getCovering(rowStart, rowEnd, top + y);
+            double[] weightsY = getWeights(rowStart, rowEnd, rowsAt, height, top + y);
+            double ownY = getWeight(rowStart[row], rowEnd[row], height, top + y);
+            for (int x = 0; x < tileWidth; x++) {
+                int i = y * tileWidth + x;
+                int[] cols = colsAt[x];
+                if (cols.length == 1 && rowsAt.length == 1) {
+                    canvasPixels[i] = tilePixels[i] | 0xff000000;
+                    continue;
+                }
+                double total = 0;
+                for (int r = 0; r < rowsAt.length; r++) {
+                    for (int c = 0; c < cols.length; c++) {
+                        if (placed[rowsAt[r] * colStart.length + cols[c]]) total += weightsX[x][c] * weightsY[r];
+                    }
+                }
+                double own = getWeight(colStart[col], colEnd[col], width, rect[0] + x) * ownY;
+                canvasPixels[i] = mix(tilePixels[i], canvasPixels[i], own / total);
+            }
+        }
+    }
+
+    private static int[] getCovering(int[] starts, int[] ends, int pos) {
+        int count = 0;
+        for (int i = 0; i < starts.length; i++) {
+            if (pos >= starts[i] && pos < ends[i]) count++;
+        }
+        int[] covering = new int[count];
+        count = 0;
+        for (int i = 0; i < starts.length; i++) {
+            if (pos >= starts[i] && pos < ends[i]) covering[count++] = i;
+        }
+        return covering;
+    }
+
+    private double[] getWeights(int[] starts, int[] ends, int[] covering, int length, int pos) {
+        double[] weights = new double[covering.length];
+        for (int i = 0; i < covering.length; i++) weights[i] = getWeight(starts[covering[i]], ends[covering[i]], length, pos);
+        return weights;
+    }
+
+    private static int mix(int src, int dst, double alpha) {
+        if (alpha >= 1d) return src | 0xff000000;
+        int r = (int) Math.round(((src >> 16) & 0xff) * alpha + ((dst >> 16) & 0xff) * (1 - alpha));
+        int g = (int) Math.round(((src >> 8) & 0xff) * alpha + ((dst >> 8) & 0xff) * (1 - alpha));
+        int b = (int) Math.round((src & 0xff) * alpha + (dst & 0xff) * (1 - alpha));
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,282 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.dto.Sketch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * Renders the whole canvas of a sketch at full resolution with img2img, one sdSize tile at a
+ * time. Every healthy server takes the next tile from a shared queue, so the render gets faster
+ * with each server added, and a finished tile is blended into the result at once. A tile that
+ * fails goes back to the queue for any server, a server that has turned unhealthy stops taking
+ * tiles as long as another server is still working.
+ */
+public class TiledRenderer {
+    public static final int DEFAULT_OVERLAP = 128;
+    private static final int MAX_TILE_ATTEMPTS = 3;
+
+    public interface Listener {
+        void onTileDone(int done, int total);
+    }
+
+    private final SdApiHelper sdApiHelper;
+    private final SdParam param;
+    private final Sketch sketch;
+    private final File tempDir;
+    private final TileLayout layout;
+    private final OkHttpClient client = HttpClientRegistry.getClient(10, 900);
+    private final Object lock = new Object();
+    private Deque<Integer> pending;
+    private int[] attempts;
+    private int running;
+    private int workers;
+    private IOException error;
+    private String infoTexts;
+    private int generation;
+
+    public TiledRenderer(SdApiHelper sdApiHelper, SdParam param, Sketch sketch, File tempDir) {
+        this.sdApiHelper = sdApiHelper;
+        this.param = param;
+        this.sketch = sketch;
+        this.tempDir = tempDir;
+        this.layout = new TileLayout(sketch.getImgBackground().getWidth(), sketch.getImgBackground().getHeight(), param.sdSize, DEFAULT_OVERLAP);
+    }
+
+    public TileLayout getLayout() { return layout; }
+
+    /* The infotexts of the first tile of the last render. */
+    public synchronized String getInfoTexts() { return infoTexts; }
+
+    /* Blocks until all tiles are blended, null when the token is cancelled. */
+    public Bitmap render(CancellationToken token, Listener listener) throws IOException, InterruptedException {
+        SdBackendPool pool = SdBackendPool.getInstance();
+        List<String> urls = new ArrayList<>();
+        for (SdBackendPool.Backend backend : pool.getBackends()) {
+            if (backend.isHealthy()) urls.add(backend.url);
+        }
+        if (urls.isEmpty() && pool.select() != null) urls.add(pool.select());
+        if (urls.isEmpty()) throw new IOException("No SD server");
+
+        int tileCount = layout.getTileCount();
+        Bitmap result = sketch.getImgBackground().copy(Bitmap.Config.ARGB_8888, true);
+        boolean[] placed = new boolean[tileCount];
+        int seedOffset;
+        synchronized (this) {
+            infoTexts = null;
+            seedOffset = generation++;
+        }
+        synchronized (lock) {
+            pending = new ArrayDeque<>();
+            for (int i = 0; i < tileCount; i++) pending.add(i);
+            attempts = new int[tileCount];
+            running = 0;
+            workers = urls.size();
+            error = null;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int[] done = {0};
+        for (String url : urls) {
+            tasks.add(() -> {
+                Integer index;
+                while ((index = nextTile(token)) != null) {
+                    try {
+                        Bitmap tile = renderTile(index, url, token, seedOffset);
+                        int count;
+                        synchronized (result) {
+                            placeTile(result, placed, index, tile);
+                            count = ++done[0];
+                        }
+                        if (listener != null) listener.onTileDone(count, tileCount);
+                        endTile(index, null, url);
+                    } catch (IOException e) {
+                        if (token != null && token.isCancelled()) {
+                            endTile(index, null, url);
+                            break;
+                        }
+                        e.printStackTrace();
+                        if (!endTile(index, e, url)) break;
+                    } catch (Throwable t) {
+                        // out of memory or a bug: stop the render instead of leaving the tile running
+                        t.printStackTrace();
+                        abortTile(new IOException("Tile " + index + ": " + t, t));
+                        break;
+                    }
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(urls.size());
+        try {
+            executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (token != null && token.isCancelled()) return null;
+        synchronized (lock) {
+            if (error != null) throw error;
+        }
+        return result;
+    }
+
+    private Integer nextTile(CancellationToken token) throws InterruptedException {
+        synchronized (lock) {
+            while (pending.isEmpty() && running > 0 && error == null && (token == null || !token.isCancelled())) {
+                lock.wait(1000);
+            }
+            if (pending.isEmpty() || error != null || (token != null && token.isCancelled())) return null;
+            running++;
+            return pending.poll();
+        }
+    }
+
+    /* False when the worker of the server should stop taking tiles. */
+    private boolean endTile(int index, IOException e, String url) {
+        synchronized (lock) {
+            running--;
+            try {
+                if (e == null) return true;
+                if (++attempts[index] >= MAX_TILE_ATTEMPTS) {
+                    error = e;
+                    return false;
+                }
+                pending.addFirst(index);
+                if (!SdBackendPool.getInstance().isHealthy(url) && workers > 1) {
+                    workers--;
+                    return false;
+                }
+                return true;
+            } finally {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void abortTile(IOException e) {
+        synchronized (lock) {
+            running--;
+            if (error == null) error = e;
+            lock.notifyAll();
+        }
+    }
+
+    private Bitmap renderTile(int index, String url, CancellationToken token, int seedOffset) throws IOException {
+        int[] rect = layout.getTileRect(index);
+        JSONObject jsonObject = sdApiHelper.getControlnetImg2imgJSON(param, getTileSketch(rect));
+        try {
+            long seed = jsonObject.optLong("seed", -1);
+            if (seed >= 0) jsonObject.put("seed", seed + seedOffset);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        SdRequestBody body = new SdRequestBody(jsonObject);
+        Request request = new Request.Builder()
+                .url(url + "/sdapi/v1/img2img")
+                .tag(String.class, "img2img")
+                .post(body)
+                .tag(SdRequestBody.class, body)
+                .build();
+
+        SdBackendPool pool = SdBackendPool.getInstance();
+        Call call = client.newCall(request);
+        if (token != null) token.track("tile" + index, call);
+        pool.begin(url);
+        Response response;
+        try {
+            response = call.execute();
+        } catch (IOException e) {
+            pool.end(url, false);
+            throw e;
+        }
+        try (ResponseBody responseBody = response.body()) {
+            pool.end(url, response.code() < 500);
+            if (!response.isSuccessful() || responseBody == null) {
+                throw new IOException("Response Code: " + response.code());
+            }
+            pool.onRequestDone(url, jsonObject);
+            SdImageResponse sdResponse = SdResponseReader.readImageResponse(responseBody.source(), tempDir);
+            try {
+                int firstImage = sdResponse.getIndexOfFirstImage();
+                if (firstImage >= sdResponse.images.size()) throw new IOException("No image for tile " + index);
+                Bitmap bitmap = BitmapFactory.decodeFile(sdResponse.images.get(firstImage).getAbsolutePath());
+                if (bitmap == null) throw new IOException("Cannot decode tile " + index);
+                synchronized (this) {
+                    if (infoTexts == null) infoTexts = sdResponse.getInfoTexts(firstImage);
+                }
+                return bitmap;
+            } finally {
+                sdResponse.deleteImages();
+            }
+        }
+    }
+
+    /* The part of the sketch under a tile, as a sketch of its own. */
+    private Sketch getTileSketch(int[] rect) {
+        Bitmap bg = sketch.getImgBackground();
+        int width = rect[2] - rect[0];
+        int height = rect[3] - rect[1];
+        Bitmap tileBg = Bitmap.createBitmap(bg, rect[0], rect[1], width, height);
+
+        Bitmap tilePaint = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap paint = sketch.getImgPaint();
+        if (paint != null) {
+            double scaleX = (double) paint.getWidth() / bg.getWidth();
+            double scaleY = (double) paint.getHeight() / bg.getHeight();
+            Rect src = new Rect((int) Math.round(rect[0] * scaleX), (int) Math.round(rect[1] * scaleY),
+                    (int) Math.round(rect[2] * scaleX), (int) Math.round(rect[3] * scaleY));
+            new Canvas(tilePaint).drawBitmap(paint, src, new Rect(0, 0, width, height), null);
+        }
+        Bitmap tilePreview = tileBg.copy(Bitmap.Config.ARGB_8888, true);
+        new Canvas(tilePreview).drawBitmap(tilePaint, 0, 0, null);
+
+        Sketch tile = new Sketch();
+        tile.setPrompt(sketch.getPrompt());
+        tile.setNegPrompt(sketch.getNegPrompt());
+        tile.setStyle(sketch.getStyle());
+        tile.setImgBackground(tileBg);
+        tile.setImgPaint(tilePaint);
+        tile.setImgPreview(tilePreview);
+        tile.setImgReference(sketch.getImgReference());
+        return tile;
+    }
+
+    private void placeTile(Bitmap result, boolean[] placed, int index, Bitmap tile) {
+        int[] rect = layout.getTileRect(index);
+        int width = rect[2] - rect[0];
+        int height = rect[3] - rect[1];
+        if (tile.getWidth() != width || tile.getHeight() != height) {
+            tile = Bitmap.createScaledBitmap(tile, width, height, true);
+        }
+        int[] tilePixels = new int[width * height];
+        tile.getPixels(tilePixels, 0, width, 0, 0, width, height);
+        int[] canvasPixels = new int[width * height];
+        result.getPixels(canvasPixels, 0, width, rect[0], rect[1], width, height);
+        layout.blend(index, tilePixels, canvasPixels, placed);
+        result.setPixels(canvasPixels, 0, width, rect[0], rect[1], width, height);
+    }
+}
@@ -0,0 +1,315 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * Upscales an image too large for one extras request. The image is cut into overlapping tiles,
+ * up to parallelism tiles are upscaled at once, each on the least loaded server, and upscaled
+ * tiles are kept as files. The result is blended and written to a PNG a band of rows at a time,
+ * as soon as the tiles under the band are back, so neither a server nor the phone ever has the
+ * whole upscaled image in memory. The PNG stays in the cache directory until deleteResults.
+ */
+public class TiledUpscaler {
+    public static final int TILE_SIZE = 512;
+    public static final int OVERLAP = 32;
+    /* Upscales up to this long side still go in one request. */
+    public static final int MAX_SINGLE_SIZE = 4096;
+    public static final int PREVIEW_SIZE = 4096;
+    private static final int BAND_ROWS = 256;
+    private static final int MAX_TILE_ATTEMPTS = 3;
+    private static final String RESULT_PREFIX = "upscaled_";
+
+    public interface Listener {
+        void onTileDone(int done, int total);
+    }
+
+    private final SdApiHelper sdApiHelper;
+    private final Bitmap source;
+    private final double scale;
+    private final File tempDir;
+    private final int parallelism;
+    private final TileLayout layout;
+    private final TileLayout outLayout;
+    private final OkHttpClient client = HttpClientRegistry.getClient(10, 900);
+    private final Object lock = new Object();
+    private Deque<Integer> pending;
+    private int[] attempts;
+    private File[] tileFiles;
+    private int done;
+    private boolean stopped;
+    private IOException error;
+
+    public TiledUpscaler(SdApiHelper sdApiHelper, Bitmap source, double scale, File tempDir, int parallelism) {
+        this.sdApiHelper = sdApiHelper;
+        this.source = source;
+        this.scale = scale;
+        this.tempDir = tempDir;
+        this.parallelism = Math.max(1, parallelism);
+        this.layout = new TileLayout(source.getWidth(), source.getHeight(), TILE_SIZE, OVERLAP);
+        this.outLayout = layout.scale(scale);
+    }
+
+    public static boolean isNeeded(Bitmap bitmap, double scale) {
+        int longSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        return longSide > TILE_SIZE && longSide * scale > MAX_SINGLE_SIZE;
+    }
+
+    /* Deletes the upscaled images left in dir. */
+    public static void deleteResults(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(RESULT_PREFIX));
+        if (files == null) return;
+        for (File f : files) f.delete();
+    }
+
+    /* Decodes the upscaled image halved until its long side fits in PREVIEW_SIZE. */
+    public static Bitmap decodePreview(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / options.inSampleSize > PREVIEW_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+
+    /* Blocks until the PNG of the upscaled image is written. */
+    public File upscale(Listener listener) throws IOException, InterruptedException {
+        int tileCount = layout.getTileCount();
+        synchronized (lock) {
+            pending = new ArrayDeque<>();
+            for (int i = 0; i < tileCount; i++) pending.add(i);
+            attempts = new int[tileCount];
+            tileFiles = new File[tileCount];
+            done = 0;
+            stopped = false;
+            error = null;
+        }
+        File result = File.createTempFile(RESULT_PREFIX, ".png", tempDir);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(() -> runWorker(listener, tileCount));
+        }
+
+        int width = outLayout.getWidth();
+        int height = outLayout.getHeight();
+        Map<Integer, BitmapRegionDecoder> decoders = new HashMap<>();
+        boolean written = false;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(result), 64 * 1024)) {
+            PngEncoder.RgbWriter writer = new PngEncoder.RgbWriter(out, width, height, Deflater.BEST_SPEED);
+            for (int top = 0; top < height; top += BAND_ROWS) {
+                int bottom = Math.min(height, top + BAND_ROWS);
+                List<Integer> tiles = new ArrayList<>();
+                for (int i = 0; i < tileCount; i++) {
+                    int[] rect = outLayout.getTileRect(i);
+                    if (rect[1] < bottom && rect[3] > top) tiles.add(i);
+                }
+                waitForTiles(tiles);
+
+                int[] band = new int[width * (bottom - top)];
+                boolean[] placed = new boolean[tileCount];
+                for (int index : tiles) {
+                    blendBand(index, band, top, bottom, placed, decoders);
+                    if (outLayout.getTileRect(index)[3] <= bottom) {
+                        BitmapRegionDecoder decoder = decoders.remove(index);
+                        if (decoder != null) decoder.recycle();
+                        tileFiles[index].delete();
+                    }
+                }
+                writer.writeRows(band, bottom - top);
+            }
+            writer.close();
+            written = true;
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                pending.clear();
+                for (File f : tileFiles) {
+                    if (f != null) f.delete();
+                }
+                lock.notifyAll();
+            }
+            executor.shutdownNow();
+            for (BitmapRegionDecoder decoder : decoders.values()) decoder.recycle();
+            if (!written) result.delete();
+        }
+        return result;
+    }
+
+    private void waitForTiles(List<Integer> tiles) throws IOException, InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (error != null) throw error;
+                boolean ready = true;
+                for (int index : tiles) {
+                    if (tileFiles[index] == null) {
+                        ready = false;
+                        break;
+                    }
+                }
+                if (ready) return;
+                lock.wait();
+            }
+        }
+    }
+
+    private void blendBand(int index, int[] band, int top, int bottom, boolean[] placed, Map<Integer, BitmapRegionDecoder> decoders) throws IOException {
+        int[] rect = outLayout.getTileRect(index);
+        int tileWidth = rect[2] - rect[0];
+        int tileTop = Math.max(top, rect[1]);
+        int tileBottom = Math.min(bottom, rect[3]);
+        int rows = tileBottom - tileTop;
+
+        BitmapRegionDecoder decoder = decoders.get(index);
+        if (decoder == null) {
+            decoder = BitmapRegionDecoder.newInstance(tileFiles[index].getAbsolutePath(), false);
+            decoders.put(index, decoder);
+        }
+        Bitmap strip = decoder.decodeRegion(new Rect(0, tileTop - rect[1], tileWidth, tileBottom - rect[1]), null);
+        if (strip == null) throw new IOException("Cannot decode tile " + index);
+        int[] tilePixels = new int[tileWidth * rows];
+        strip.getPixels(tilePixels, 0, tileWidth, 0, 0, tileWidth, rows);
+        strip.recycle();
+
+        int width = outLayout.getWidth();
+        int[] canvasPixels = new int[tileWidth * rows];
+        for (int y = 0; y < rows; y++) {
+            System.arraycopy(band, (tileTop - top + y) * width + rect[0], canvasPixels, y * tileWidth, tileWidth);
+        }
+        outLayout.blend(index, tilePixels, canvasPixels, placed, tileTop, tileBottom);
+        for (int y = 0; y < rows; y++) {
+            System.arraycopy(canvasPixels, y * tileWidth, band, (tileTop - top + y) * width + rect[0], tileWidth);
+        }
+    }
+
+    private void runWorker(Listener listener, int tileCount) {
+        while (true) {
+            int index;
+            synchronized (lock) {
+                if (stopped || error != null || pending.isEmpty()) return;
+                index = pending.poll();
+            }
+            try {
+                File file = upscaleTile(index);
+                int count;
+                synchronized (lock) {
+                    if (stopped) {
+                        file.delete();
+                        return;
+                    }
+                    tileFiles[index] = file;
+                    count = ++done;
+                    lock.notifyAll();
+                }
+                if (listener != null) listener.onTileDone(count, tileCount);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) {
+                    if (++attempts[index] >= MAX_TILE_ATTEMPTS) {
+                        if (error == null) error = e;
+                    } else {
+                        pending.addFirst(index);
+                    }
+                    lock.notifyAll();
+                }
+            } catch (Throwable t) {
+                // out of memory or a bug: no point in retrying, but the writer must not wait forever
+                t.printStackTrace();
+                synchronized (lock) {
+                    if (error == null) error = new IOException("Tile " + index + ": " + t, t);
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private File upscaleTile(int index) throws IOException {
+        int[] rect = layout.getTileRect(index);
+        Bitmap tile = Bitmap.createBitmap(source, rect[0], rect[1], rect[2] - rect[0], rect[3] - rect[1]);
+        JSONObject jsonObject = sdApiHelper.getExtraSingleImageJSON(tile, scale);
+
+        SdBackendPool pool = SdBackendPool.getInstance();
+        String url = pool.select();
+        if (url == null) throw new IOException("No SD server");
+        SdRequestBody body = new SdRequestBody(jsonObject);
+        Request request = new Request.Builder()
+                .url(url + "/sdapi/v1/extra-single-image")
+                .tag(String.class, "extraSingleImage")
+                .post(body)
+                .tag(SdRequestBody.class, body)
+                .build();
+        Call call = client.newCall(request);
+        pool.begin(url);
+        Response response;
+        try {
+            response = call.execute();
+        } catch (IOException e) {
+            pool.end(url, false);
+            throw e;
+        }
+        SdImageResponse sdResponse;
+        try (ResponseBody responseBody = response.body()) {
+            pool.end(url, response.code() < 500);
+            if (!response.isSuccessful() || responseBody == null) {
+                throw new IOException("Response Code: " + response.code());
+            }
+            sdResponse = SdResponseReader.readImageResponse(responseBody.source(), tempDir);
+        }
+        if (sdResponse.images.isEmpty()) throw new IOException("No image for tile " + index);
+        File file = sdResponse.images.remove(0);
+        sdResponse.deleteImages();
+        try {
+            fitTile(file, outLayout.getTileRect(index));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /* Upscalers round the size down to a multiple of 8, such a tile is scaled to its rect. */
+    private static void fitTile(File file, int[] rect) throws IOException {
+        int width = rect[2] - rect[0];
+        int height = rect[3] - rect[1];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth == width && options.outHeight == height) return;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (bitmap == null) throw new IOException("Cannot decode " + file.getName());
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
+        }
+    }
+}
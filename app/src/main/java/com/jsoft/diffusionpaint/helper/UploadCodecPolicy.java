@@ -0,0 +1,89 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/*
+ * Chooses how the images of a request are compressed from the upload throughput of the recent
+ * requests. On a fast link the quick JPEG 90 is kept, on a slower one the JPEG quality is lowered
+ * and on a slow link (remote VPN) the smaller but slower to encode WebP is used. Each kind of
+ * input has a quality floor, masks are sent as gray PNGs by ImagePart. The throughput is a moving
+ * average of the uploads large enough to say something about the link, as measured by NetworkStats.
+ */
+public class UploadCodecPolicy {
+    public static final int INPUT_PHOTO = 0;
+    public static final int INPUT_CONTROL = 1;
+
+    public static final String JPEG = "jpeg";
+    public static final String WEBP = "webp";
+    public static final String PNG = "png";
+
+    static final double FAST_BYTES_PER_SECOND = 2.5 * 1024 * 1024;
+    static final double SLOW_BYTES_PER_SECOND = 600 * 1024;
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final double SAMPLE_WEIGHT = 0.3;
+    private static final int[] QUALITY_FLOOR = {80, 70};
+
+    private static double throughput = 0;
+
+    public static class Codec {
+        public final String name;
+        public final int quality;
+
+        Codec(String name, int quality) {
+            this.name = name;
+            this.quality = quality;
+        }
+
+        public boolean isLossless() {
+            return PNG.equals(name);
+        }
+
+        @SuppressWarnings("deprecation")
+        public Bitmap.CompressFormat getFormat() {
+            if (PNG.equals(name)) return Bitmap.CompressFormat.PNG;
+            if (JPEG.equals(name)) return Bitmap.CompressFormat.JPEG;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                return Bitmap.CompressFormat.WEBP_LOSSY;
+            }
+            // before Android 11 WEBP is lossless at quality 100
+            return Bitmap.CompressFormat.WEBP;
+        }
+
+        @Override
+        public String toString() {
+            return isLossless() ? name : name + "/" + quality;
+        }
+    }
+
+    /* Only for bodies whose images were all encoded beforehand, else the encoding time counts as a slow link. */
+    public static synchronized void recordUpload(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) return;
+        double sample = bytes * 1e9 / nanos;
+        throughput = throughput <= 0 ? sample : throughput * (1 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT;
+    }
+
+    /* Bytes per second, 0 while no upload has been measured. */
+    public static synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public static synchronized void reset() {
+        throughput = 0;
+    }
+
+    public static Codec choose(int input) {
+        return choose(input, getThroughput());
+    }
+
+    static Codec choose(int input, double throughput) {
+        boolean unknown = throughput <= 0;
+        int floor = QUALITY_FLOOR[input];
+        if (unknown || throughput >= FAST_BYTES_PER_SECOND) {
+            return new Codec(JPEG, Math.max(floor, 90));
+        } else if (throughput >= SLOW_BYTES_PER_SECOND) {
+            return new Codec(JPEG, Math.max(floor, 80));
+        }
+        return new Codec(WEBP, Math.max(floor, 70));
+    }
+}
@@ -0,0 +1,118 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+ * Resamples the images of a request to the width and height the server will generate, so the
+ * canvas is not uploaded at full resolution only to be scaled down by the server. The geometry
+ * follows the server side resize modes (the ControlNet cnResizeMode values, MODE_CROP being the
+ * img2img resize_mode 1): the server gets the same picture, only with fewer pixels. Images that
+ * are not larger than needed are sent as they are. The last result per source bitmap is kept,
+ * so the pre-encoded payload and the real request share the same bitmap and its encoding.
+ */
+public class UploadResampler {
+    public static final int MODE_RESIZE = 0;
+    public static final int MODE_CROP = 1;
+    public static final int MODE_FILL = 2;
+
+    private static final Map<Bitmap, Resampled> lastResults = new WeakHashMap<>();
+
+    private static class Resampled {
+        int generationId;
+        int width;
+        int height;
+        int mode;
+        boolean filter;
+        Bitmap bitmap;
+    }
+
+    public static Bitmap resample(Bitmap src, int width, int height, int mode) {
+        return resample(src, width, height, mode, true);
+    }
+
+    /* filter is false for masks, to keep their edges hard. */
+    public static Bitmap resample(Bitmap src, int width, int height, int mode, boolean filter) {
+        if (src == null || width <= 0 || height <= 0) return src;
+        int[] crop = getSourceRect(src.getWidth(), src.getHeight(), width, height, mode);
+        int[] size = getScaledSize(src.getWidth(), src.getHeight(), width, height, mode);
+        if (crop == null || size == null) return src;
+        Rect srcRect = new Rect(crop[0], crop[1], crop[2], crop[3]);
+
+        synchronized (lastResults) {
+            Resampled last = lastResults.get(src);
+            if (last != null && last.generationId == src.getGenerationId() && last.width == width
+                    && last.height == height && last.mode == mode && last.filter == filter) {
+                return last.bitmap;
+            }
+        }
+
+        Bitmap source = src;
+        if (filter) {
+            // bilinear filtering only looks at 4 pixels, halve first so thin lines do not alias away
+            while (srcRect.width() >= 2 * size[0] && srcRect.height() >= 2 * size[1]) {
+                Bitmap half = Bitmap.createBitmap(srcRect.width() / 2, srcRect.height() / 2, Bitmap.Config.ARGB_8888);
+                new Canvas(half).drawBitmap(source, srcRect, new Rect(0, 0, half.getWidth(), half.getHeight()), new Paint(Paint.FILTER_BITMAP_FLAG));
+                if (source != src) source.recycle();
+                source = half;
+                srcRect = new Rect(0, 0, half.getWidth(), half.getHeight());
+            }
+        }
+        Bitmap result = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+        new Canvas(result).drawBitmap(source, srcRect, new Rect(0, 0, size[0], size[1]), filter ? new Paint(Paint.FILTER_BITMAP_FLAG) : null);
+        if (source != src) source.recycle();
+
+        Resampled resampled = new Resampled();
+        resampled.generationId = src.getGenerationId();
+        resampled.width = width;
+        resampled.height = height;
+        resampled.mode = mode;
+        resampled.filter = filter;
+        resampled.bitmap = result;
+        synchronized (lastResults) {
+            lastResults.put(src, resampled);
+        }
+        return result;
+    }
+
+    /*
+     * The size of the resampled image: the target for MODE_RESIZE and MODE_CROP, the image fitted
+     * inside the target for MODE_FILL (the server pads it). Null when the source is not larger.
+     */
+    static int[] getScaledSize(int srcWidth, int srcHeight, int width, int height, int mode) {
+        double ratio = getRatio(srcWidth, srcHeight, width, height, mode);
+        if (ratio >= 1) return null;
+        if (mode == MODE_FILL) {
+            return new int[] {Math.max(1, (int) Math.round(srcWidth * ratio)), Math.max(1, (int) Math.round(srcHeight * ratio))};
+        }
+        return new int[] {width, height};
+    }
+
+    /*
+     * The part of the source kept by the resize mode as {left, top, right, bottom}, centred for
+     * MODE_CROP. Null when the source is not larger.
+     */
+    static int[] getSourceRect(int srcWidth, int srcHeight, int width, int height, int mode) {
+        double ratio = getRatio(srcWidth, srcHeight, width, height, mode);
+        if (ratio >= 1) return null;
+        if (mode == MODE_CROP) {
+            int cropWidth = Math.min(srcWidth, (int) Math.round(width / ratio));
+            int cropHeight = Math.min(srcHeight, (int) Math.round(height / ratio));
+            int left = (srcWidth - cropWidth) / 2;
+            int top = (srcHeight - cropHeight) / 2;
+            return new int[] {left, top, left + cropWidth, top + cropHeight};
+        }
+        return new int[] {0, 0, srcWidth, srcHeight};
+    }
+
+    private static double getRatio(int srcWidth, int srcHeight, int width, int height, int mode) {
+        double ratioW = (double) width / srcWidth;
+        double ratioH = (double) height / srcHeight;
+        return mode == MODE_CROP ? Math.max(ratioW, ratioH) : Math.min(ratioW, ratioH);
+    }
+}
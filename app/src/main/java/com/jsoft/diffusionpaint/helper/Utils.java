@@ -22,6 +22,7 @@ import android.view.WindowManager;
 
 import androidx.exifinterface.media.ExifInterface;
 
+import com.jsoft.diffusionpaint.dto.SdParam;
 import com.jsoft.diffusionpaint.dto.Sketch;
 
 import org.json.JSONException;
@@ -29,9 +30,11 @@ import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
@@ -78,6 +81,11 @@ public class Utils {
 
     public static String bitmap2Base64String(Bitmap bm, Bitmap.CompressFormat format, int quality) {
         if (bm == null) return "";
+        try {
+            return new String(EncodedImageCache.getInstance().getBase64(bm, format, quality), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         ByteArrayOutputStream byteArrayOutputStream  = new ByteArrayOutputStream();
         bm.compress(format, quality, byteArrayOutputStream ); //bm is the bitmap object
         byte[] b = byteArrayOutputStream .toByteArray();
@@ -132,7 +140,7 @@ public class Utils {
         }
     }
 
-    public static void saveBitmapToExternalStorage(Activity a, Bitmap bitmap, String filename, String exifJson) {
+    public static void saveBitmapToExternalStorage(Context a, Bitmap bitmap, String filename, String exifJson) {
         // Get the directory for the user's public pictures directory.
         File picturesDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
         File sdSketchFolder = new File(picturesDirectory, "sdSketch");
@@ -158,6 +166,27 @@ public class Utils {
         }
     }
 
+    /* Copies an image already encoded, such as a tiled upscale, to the pictures folder. */
+    public static void saveFileToExternalStorage(Context a, File image, String filename, String exifJson) {
+        File picturesDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        File sdSketchFolder = new File(picturesDirectory, "sdSketch");
+        if (!sdSketchFolder.exists()) {
+            sdSketchFolder.mkdirs();
+        }
+        File file = new File(sdSketchFolder, filename);
+
+        try (InputStream in = new FileInputStream(image); OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        saveImageExif(file.getAbsolutePath(), exifJson);
+        MediaScannerConnection.scanFile(a, new String[]{file.toString()}, null, null);
+    }
+
     public static Bitmap getDilationMask(Bitmap sketchBitmap, int expandPixel) {
         // Create a new Bitmap with the same dimensions and a black background
 
@@ -277,6 +306,33 @@ public class Utils {
     }
 
 
+    public static void prepareSketchForMode(Sketch sketch, SdParam param) {
+        String cnMode = sketch.getCnMode();
+        if (cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_V) || cnMode.startsWith(Sketch.CN_MODE_OUTPAINT_H)) {
+            sketch.setImgBackground(getOutpaintBmp(sketch.getImgBackground(), cnMode, Color.BLACK, false, param.sdSize));
+            sketch.setImgPreview(getOutpaintBmp(sketch.getImgPreview(), cnMode, Color.BLUE, false, param.sdSize));
+            sketch.setImgPaint(getOutpaintBmp(sketch.getImgPaint(), cnMode, Color.BLACK, true, param.sdSize));
+        } else if (cnMode.equals(Sketch.CN_MODE_INPAINT_MERGE)) {
+            sketch.setImgBackground(sketch.getImgBgRef());
+            sketch.setImgPaint(sketch.getImgBgRefPaint(32));
+            sketch.setImgPreview(sketch.getImgBgRefPreview());
+        }
+    }
+
+    public static Bitmap mergeInpaintResult(Sketch sketch, SdParam param, Bitmap result) {
+        int boundary = (int)Math.round(Math.max(sketch.getImgPaint().getWidth(), sketch.getImgPaint().getHeight()) / 50d);
+        if (param.inpaintPartial == SdParam.INPAINT_PARTIAL) {
+            Bitmap bmEdit = Bitmap.createBitmap(sketch.getImgBackground().getWidth(), sketch.getImgBackground().getHeight(), Bitmap.Config.ARGB_8888);
+            Canvas canvasEdit = new Canvas(bmEdit);
+            canvasEdit.drawBitmap(sketch.getImgBackground(), null, new RectF(0, 0, bmEdit.getWidth(), bmEdit.getHeight()), null);
+            canvasEdit.drawBitmap(result, null, sketch.getRectInpaint(param.sdSize), null);
+            return sketch.getImgBgMerge(bmEdit, boundary);
+        } else if (param.type.equals(SdParam.SD_MODE_TYPE_INPAINT)) {
+            return sketch.getImgBgMerge(result, boundary);
+        }
+        return result;
+    }
+
     public static Bitmap getOutpaintBmp(Bitmap bm, String cnMode, int fillColor, boolean isPaint, int sdSize) {
         int originalWidth = bm.getWidth();
         int originalHeight = bm.getHeight();
@@ -0,0 +1,184 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.jsoft.diffusionpaint.dto.Sketch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+ * Gets the SD servers ready while the user is drawing. A light progress call opens a connection
+ * to every server and is repeated often enough that the server does not close it as idle, so the
+ * generation does not start with a new TCP and TLS handshake. With "preloadCheckpoint" set, the
+ * checkpoint of the predicted mode (the mode saved with the sketch, or the last used one) is
+ * loaded on the server that will likely run the generation, as soon as that server is idle.
+ * Warming stops when the drawing screen is left, and after MAX_WARM_SECONDS.
+ */
+public class WarmUpManager {
+    public static final long KEEP_ALIVE_SECONDS = 4;
+    public static final long MAX_WARM_SECONDS = 600;
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final SdApiHelper sdApiHelper;
+    private final SharedPreferences sharedPreferences;
+    private final OkHttpClient pingClient = HttpClientRegistry.getClient(5, 10);
+    private final OkHttpClient preloadClient = HttpClientRegistry.getClient(10, 600);
+    private final Set<String> preloaded = new HashSet<>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pingTask;
+    private long startTime;
+    private String predictedMode;
+    private String preloadUrl;
+    private Call preloadCall;
+
+    public WarmUpManager(SdApiHelper sdApiHelper, SharedPreferences sharedPreferences) {
+        this.sdApiHelper = sdApiHelper;
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    public static String predictMode(Sketch sketch, SharedPreferences sharedPreferences) {
+        String cnMode = sketch == null ? null : sketch.getCnMode();
+        if (cnMode == null || cnMode.isEmpty() || Sketch.CN_MODE_ORIGIN.equals(cnMode)) {
+            cnMode = sharedPreferences.getString("lastCnMode", "");
+        }
+        return cnMode.isEmpty() || Sketch.CN_MODE_ORIGIN.equals(cnMode) ? null : cnMode;
+    }
+
+    public synchronized void start(Sketch sketch) {
+        predictedMode = predictMode(sketch, sharedPreferences);
+        SdBackendPool pool = SdBackendPool.getInstance(sharedPreferences);
+        if (pool.size() == 0) return;
+        preloadUrl = pool.select();
+        startTime = System.currentTimeMillis();
+        if (pingTask != null) return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "WarmUpManager");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        pingTask = scheduler.scheduleWithFixedDelay(this::ping, 0, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /* Stops the pings. A checkpoint load already sent is left to finish on the server. */
+    public synchronized void stop() {
+        if (pingTask != null) {
+            pingTask.cancel(false);
+            pingTask = null;
+        }
+    }
+
+    public synchronized void shutdown() {
+        stop();
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    private void ping() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - startTime > MAX_WARM_SECONDS * 1000) {
+                stop();
+                return;
+            }
+        }
+        for (SdBackendPool.Backend backend : SdBackendPool.getInstance().getBackends()) {
+            Request request = new Request.Builder()
+                    .url(backend.url + "/sdapi/v1/progress?skip_current_image=true")
+                    .tag(String.class, "warmUp")
+                    .get()
+                    .build();
+            pingClient.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {}
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    try (ResponseBody body = response.body()) {
+                        if (response.isSuccessful() && body != null && isIdle(body.string())) {
+                            preloadCheckpoint(backend.url);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean isIdle(String progress) {
+        JsonObject jsonObject = JsonParser.parseString(progress).getAsJsonObject();
+        return !jsonObject.has("state") || !jsonObject.getAsJsonObject("state").has("job_count")
+                || jsonObject.getAsJsonObject("state").get("job_count").getAsInt() <= 0;
+    }
+
+    private void preloadCheckpoint(String baseUrl) throws JSONException {
+        if (!"true".equals(sharedPreferences.getString("preloadCheckpoint", "false"))) return;
+        String model;
+        synchronized (this) {
+            if (predictedMode == null || !baseUrl.equals(preloadUrl) || preloadCall != null) return;
+            model = sdApiHelper.getPreferredModel(sdApiHelper.getSdCnParm(predictedMode));
+            if (model.isEmpty() || !sdApiHelper.isModelAvailable(model) || preloaded.contains(baseUrl + "|" + model)
+                    || model.equals(SdBackendPool.getInstance().getLoadedCheckpoint(baseUrl))) return;
+            preloaded.add(baseUrl + "|" + model);
+        }
+
+        JSONObject options = new JSONObject();
+        options.put("sd_model_checkpoint", model);
+        Request request = new Request.Builder()
+                .url(baseUrl + "/sdapi/v1/options")
+                .tag(String.class, "preloadCheckpoint")
+                .post(RequestBody.create(options.toString(), JSON))
+                .build();
+        Call call = preloadClient.newCall(request);
+        synchronized (this) {
+            preloadCall = call;
+        }
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                e.printStackTrace();
+                done();
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                response.close();
+                if (response.isSuccessful()) {
+                    SdBackendPool.getInstance().setLoadedCheckpoint(baseUrl, model);
+                }
+                done();
+            }
+
+            private void done() {
+                synchronized (WarmUpManager.this) {
+                    preloadCall = null;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,298 @@
+package com.jsoft.diffusionpaint.helper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/*
+ * Stand-in for the A1111 API on a MockWebServer, implementing the endpoints the app calls.
+ * Generations take latencyMs per image and return noise PNGs of the configured size, and
+ * progress reports the running job. In record mode every request is forwarded to a real server
+ * and the response is saved, in replay mode the saved responses are served again.
+ */
+public class FakeSdServer {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final Gson gson = new Gson();
+
+    private final MockWebServer server = new MockWebServer();
+    private final Map<String, String> encodedImages = new HashMap<>();
+    private final AtomicInteger jobCount = new AtomicInteger();
+    private final AtomicInteger generationCount = new AtomicInteger();
+    private volatile long latencyMs = 0;
+    private volatile long metadataLatencyMs = 0;
+    private volatile int imageWidth = 512;
+    private volatile int imageHeight = 512;
+    private volatile long jobStart;
+    private volatile long jobDuration;
+    private volatile boolean interrupted;
+    private String loadedModel = "v1-5-pruned-emaonly.safetensors [6ce0161689]";
+
+    private String recordTarget;
+    private File recordDir;
+    private File replayDir;
+    private OkHttpClient recordClient;
+
+    public void start() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return FakeSdServer.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    public void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    public String getBaseUrl() {
+        return server.url("").toString().replaceAll("/$", "");
+    }
+
+    public MockWebServer getServer() { return server; }
+
+    public int getGenerationCount() { return generationCount.get(); }
+
+    /* Time the server takes for each generated image. */
+    public void setLatency(long latencyMs) { this.latencyMs = latencyMs; }
+
+    public void setMetadataLatency(long metadataLatencyMs) { this.metadataLatencyMs = metadataLatencyMs; }
+
+    public void setImageSize(int width, int height) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+    }
+
+    public void record(String realBaseUrl, File dir) {
+        recordTarget = realBaseUrl.replaceAll("/$", "");
+        recordDir = dir;
+        replayDir = null;
+        recordClient = new OkHttpClient.Builder()
+                .readTimeout(15, TimeUnit.MINUTES)
+                .build();
+        dir.mkdirs();
+    }
+
+    public void replay(File dir) {
+        replayDir = dir;
+        recordTarget = null;
+    }
+
+    private MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath() == null ? "/" : request.getPath();
+        String endpoint = path.contains("?") ? path.substring(0, path.indexOf('?')) : path;
+        try {
+            if (replayDir != null) return replay(request.getMethod(), endpoint);
+            if (recordTarget != null) return record(request, path, endpoint);
+
+            switch (endpoint) {
+                case "/sdapi/v1/txt2img":
+                case "/sdapi/v1/img2img":
+                    return generate(parse(request));
+                case "/sdapi/v1/extra-single-image":
+                    return extras(parse(request));
+                case "/sdapi/v1/progress":
+                    return progress();
+                case "/sdapi/v1/interrupt":
+                    interrupted = true;
+                    return json("{}");
+                case "/sdapi/v1/options":
+                    if ("POST".equals(request.getMethod())) {
+                        JsonObject options = parse(request);
+                        if (options.has("sd_model_checkpoint")) loadedModel = options.get("sd_model_checkpoint").getAsString();
+                        return json("{}");
+                    }
+                    return metadata("{\"sd_model_checkpoint\":" + gson.toJson(loadedModel) + ",\"CLIP_stop_at_last_layers\":1}");
+                case "/sdapi/v1/sd-models":
+                    return metadata("[{\"title\":\"v1-5-pruned-emaonly.safetensors [6ce0161689]\",\"model_name\":\"v1-5-pruned-emaonly\",\"hash\":\"6ce0161689\"},"
+                            + "{\"title\":\"sd_xl_base_1.0.safetensors [31e35c80fc]\",\"model_name\":\"sd_xl_base_1.0\",\"hash\":\"31e35c80fc\"}]");
+                case "/sdapi/v1/samplers":
+                    return metadata("[{\"name\":\"Euler a\",\"aliases\":[\"k_euler_a\"],\"options\":{}},{\"name\":\"DPM++ 2M Karras\",\"aliases\":[],\"options\":{}}]");
+                case "/sdapi/v1/upscalers":
+                    return metadata("[{\"name\":\"None\"},{\"name\":\"R-ESRGAN 4x+\"}]");
+                case "/sdapi/v1/loras":
+                    return metadata("[{\"name\":\"add_detail\",\"alias\":\"add_detail\",\"path\":\"add_detail.safetensors\",\"metadata\":{}}]");
+                case "/sdapi/v1/prompt-styles":
+                    return metadata("[{\"name\":\"Cinematic\",\"prompt\":\"cinematic still of {prompt}\",\"negative_prompt\":\"cartoon\"}]");
+                case "/controlnet/model_list":
+                    return metadata("{\"model_list\":[\"control_v11p_sd15_scribble [d4ba51ff]\",\"control_v11f1p_sd15_depth [cfd03158]\"]}");
+                case "/sdapi/v1/interrogate":
+                    return json("{\"caption\":\"a pencil sketch of a cat\"}");
+                default:
+                    return new MockResponse().setResponseCode(404).setBody("{\"detail\":\"Not Found\"}");
+            }
+        } catch (Exception e) {
+            return new MockResponse().setResponseCode(500).setBody("{\"error\":" + gson.toJson(String.valueOf(e)) + "}");
+        }
+    }
+
+    private MockResponse generate(JsonObject body) throws InterruptedException, IOException {
+        generationCount.incrementAndGet();
+        int batchSize = body.has("batch_size") ? body.get("batch_size").getAsInt() : 1;
+        int nIter = body.has("n_iter") ? body.get("n_iter").getAsInt() : 1;
+        int count = Math.max(1, batchSize * nIter);
+        boolean completed = work(latencyMs * count);
+
+        JsonArray images = new JsonArray();
+        JsonArray infotexts = new JsonArray();
+        String prompt = body.has("prompt") ? body.get("prompt").getAsString() : "";
+        for (int i = 0; i < (completed ? count : 1); i++) {
+            images.add(getEncodedImage(imageWidth, imageHeight));
+            infotexts.add(prompt + "\nSteps: 20, Sampler: Euler a, Seed: " + (1000 + i) + ", Size: " + imageWidth + "x" + imageHeight);
+        }
+        JsonObject info = new JsonObject();
+        info.add("infotexts", infotexts);
+        info.addProperty("index_of_first_image", 0);
+        JsonObject response = new JsonObject();
+        response.add("images", images);
+        response.add("parameters", body);
+        response.addProperty("info", gson.toJson(info));
+        return json(gson.toJson(response));
+    }
+
+    private MockResponse extras(JsonObject body) throws InterruptedException, IOException {
+        generationCount.incrementAndGet();
+        double scale = body.has("upscaling_resize") ? body.get("upscaling_resize").getAsDouble() : 2;
+        work(latencyMs);
+        JsonObject response = new JsonObject();
+        response.addProperty("html_info", "");
+        response.addProperty("image", getEncodedImage((int) Math.round(imageWidth * scale), (int) Math.round(imageHeight * scale)));
+        return json(gson.toJson(response));
+    }
+
+    /* Returns false when the job was interrupted. */
+    private boolean work(long duration) throws InterruptedException {
+        jobCount.incrementAndGet();
+        try {
+            synchronized (this) {
+                interrupted = false;
+                jobStart = System.currentTimeMillis();
+                jobDuration = duration;
+            }
+            long end = System.currentTimeMillis() + duration;
+            while (System.currentTimeMillis() < end) {
+                if (interrupted) return false;
+                Thread.sleep(Math.min(10, Math.max(1, end - System.currentTimeMillis())));
+            }
+            return true;
+        } finally {
+            jobCount.decrementAndGet();
+        }
+    }
+
+    private synchronized MockResponse progress() {
+        JsonObject state = new JsonObject();
+        int jobs = jobCount.get();
+        state.addProperty("job_count", jobs);
+        state.addProperty("interrupted", interrupted);
+        JsonObject response = new JsonObject();
+        if (jobs > 0 && jobDuration > 0) {
+            double elapsed = System.currentTimeMillis() - jobStart;
+            response.addProperty("progress", Math.min(0.99, elapsed / jobDuration));
+            response.addProperty("eta_relative", Math.max(0, jobDuration - elapsed) / 1000d);
+        } else {
+            response.addProperty("progress", 0);
+            response.addProperty("eta_relative", 0);
+        }
+        response.add("state", state);
+        response.add("current_image", null);
+        return json(gson.toJson(response));
+    }
+
+    private MockResponse metadata(String body) throws InterruptedException {
+        if (metadataLatencyMs > 0) Thread.sleep(metadataLatencyMs);
+        return json(body);
+    }
+
+    private MockResponse record(RecordedRequest request, String path, String endpoint) throws IOException {
+        Request.Builder builder = new Request.Builder().url(recordTarget + path);
+        if ("POST".equals(request.getMethod())) {
+            builder.post(RequestBody.create(request.getBody().readByteArray(), JSON));
+        }
+        try (Response response = recordClient.newCall(builder.build()).execute()) {
+            ResponseBody body = response.body();
+            byte[] bytes = body == null ? new byte[0] : body.bytes();
+            if (response.isSuccessful()) {
+                Files.write(getRecordFile(recordDir, request.getMethod(), endpoint).toPath(), bytes);
+            }
+            return new MockResponse().setResponseCode(response.code())
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(new Buffer().write(bytes));
+        }
+    }
+
+    private MockResponse replay(String method, String endpoint) throws IOException {
+        File file = getRecordFile(replayDir, method, endpoint);
+        if (!file.exists()) {
+            return new MockResponse().setResponseCode(404).setBody("{\"detail\":\"Not recorded\"}");
+        }
+        if (endpoint.endsWith("txt2img") || endpoint.endsWith("img2img") || endpoint.endsWith("extra-single-image")) {
+            generationCount.incrementAndGet();
+        }
+        return new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody(new Buffer().write(Files.readAllBytes(file.toPath())));
+    }
+
+    static File getRecordFile(File dir, String method, String endpoint) {
+        return new File(dir, method + endpoint.replaceAll("[^A-Za-z0-9]+", "_") + ".json");
+    }
+
+    private static JsonObject parse(RecordedRequest request) {
+        String body = request.getBody().readString(StandardCharsets.UTF_8);
+        return body.isEmpty() ? new JsonObject() : JsonParser.parseString(body).getAsJsonObject();
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    /* Noise compresses like a detailed picture, so the response is as large as a real one. */
+    private synchronized String getEncodedImage(int width, int height) throws IOException {
+        String key = width + "x" + height;
+        String encoded = encodedImages.get(key);
+        if (encoded == null) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(width * 31L + height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int base = ((x * 255 / Math.max(1, width)) << 16) | ((y * 255 / Math.max(1, height)) << 8);
+                    image.setRGB(x, y, base | random.nextInt(64));
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            encoded = Base64.getEncoder().encodeToString(out.toByteArray());
+            encodedImages.put(key, encoded);
+        }
+        return encoded;
+    }
+}
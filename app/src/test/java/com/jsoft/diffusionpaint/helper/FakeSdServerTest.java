@@ -0,0 +1,149 @@
+package com.jsoft.diffusionpaint.helper;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+public class FakeSdServerTest {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private FakeSdServer server;
+    private final OkHttpClient client = new OkHttpClient.Builder().readTimeout(10, TimeUnit.SECONDS).build();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSdServer();
+        server.setImageSize(64, 64);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void metadataEndpoints_answer() throws IOException {
+        for (String path : new String[] {"/sdapi/v1/options", "/sdapi/v1/sd-models", "/sdapi/v1/loras",
+                "/sdapi/v1/prompt-styles", "/controlnet/model_list", "/sdapi/v1/samplers", "/sdapi/v1/upscalers"}) {
+            assertEquals(path, 200, get(path).code);
+        }
+        assertEquals(404, get("/sdapi/v1/unknown").code);
+    }
+
+    @Test
+    public void txt2img_returnsBatchOfImages() throws IOException {
+        JsonObject response = JsonParser.parseString(post("/sdapi/v1/txt2img", "{\"prompt\":\"cat\",\"batch_size\":2,\"n_iter\":2}").body).getAsJsonObject();
+        assertEquals(4, response.getAsJsonArray("images").size());
+        JsonObject info = JsonParser.parseString(response.get("info").getAsString()).getAsJsonObject();
+        assertEquals(4, info.getAsJsonArray("infotexts").size());
+    }
+
+    @Test
+    public void progress_reportsRunningJob() throws Exception {
+        server.setLatency(500);
+        CompletableFuture<Result> generation = CompletableFuture.supplyAsync(() -> {
+            try {
+                return post("/sdapi/v1/img2img", "{}");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(150);
+        JsonObject progress = JsonParser.parseString(get("/sdapi/v1/progress?skip_current_image=true").body).getAsJsonObject();
+        assertEquals(1, progress.getAsJsonObject("state").get("job_count").getAsInt());
+        assertTrue(progress.get("progress").getAsDouble() > 0);
+        assertEquals(200, generation.get(5, TimeUnit.SECONDS).code);
+        progress = JsonParser.parseString(get("/sdapi/v1/progress").body).getAsJsonObject();
+        assertEquals(0, progress.getAsJsonObject("state").get("job_count").getAsInt());
+    }
+
+    @Test
+    public void interrupt_endsJobEarly() throws Exception {
+        server.setLatency(5000);
+        long start = System.currentTimeMillis();
+        CompletableFuture<Result> generation = CompletableFuture.supplyAsync(() -> {
+            try {
+                return post("/sdapi/v1/txt2img", "{\"batch_size\":3}");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(150);
+        post("/sdapi/v1/interrupt", "{}");
+        Result result = generation.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, JsonParser.parseString(result.body).getAsJsonObject().getAsJsonArray("images").size());
+    }
+
+    @Test
+    public void recordAndReplay_serveSameResponses() throws IOException {
+        File dir = tempFolder.newFolder("recorded");
+        FakeSdServer recorder = new FakeSdServer();
+        recorder.start();
+        try {
+            recorder.record(server.getBaseUrl(), dir);
+            String models = get(recorder.getBaseUrl(), "/sdapi/v1/sd-models").body;
+            String generated = post(recorder.getBaseUrl(), "/sdapi/v1/txt2img", "{\"prompt\":\"dog\"}").body;
+            assertTrue(FakeSdServer.getRecordFile(dir, "GET", "/sdapi/v1/sd-models").exists());
+
+            recorder.replay(dir);
+            int served = server.getServer().getRequestCount();
+            assertEquals(models, get(recorder.getBaseUrl(), "/sdapi/v1/sd-models").body);
+            assertEquals(generated, post(recorder.getBaseUrl(), "/sdapi/v1/txt2img", "{}").body);
+            assertEquals(404, get(recorder.getBaseUrl(), "/sdapi/v1/loras").code);
+            assertEquals(served, server.getServer().getRequestCount());
+        } finally {
+            recorder.shutdown();
+        }
+    }
+
+    private Result get(String path) throws IOException {
+        return get(server.getBaseUrl(), path);
+    }
+
+    private Result get(String baseUrl, String path) throws IOException {
+        return execute(new Request.Builder().url(baseUrl + path).get().build());
+    }
+
+    private Result post(String path, String body) throws IOException {
+        return post(server.getBaseUrl(), path, body);
+    }
+
+    private Result post(String baseUrl, String path, String body) throws IOException {
+        return execute(new Request.Builder().url(baseUrl + path).post(RequestBody.create(body, JSON)).build());
+    }
+
+    private Result execute(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            Result result = new Result();
+            result.code = response.code();
+            result.body = response.body() == null ? "" : response.body().string();
+            return result;
+        }
+    }
+
+    private static class Result {
+        int code;
+        String body;
+    }
+}
@@ -0,0 +1,142 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class PngEncoderTest {
+
+    @Test
+    public void oneBitMask_decodesToSameBlackAndWhite() throws IOException {
+        int width = 37;
+        int height = 21;
+        byte[] gray = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                gray[y * width + x] = (x - 18) * (x - 18) + (y - 10) * (y - 10) < 64 ? (byte) 255 : 0;
+            }
+        }
+        assertTrue(PngEncoder.isBlackAndWhite(gray));
+        BufferedImage image = roundTrip(gray, width, height, 1);
+        assertEquals(1, image.getColorModel().getPixelSize());
+        assertPixels(gray, image);
+    }
+
+    @Test
+    public void eightBitGray_isLossless() throws IOException {
+        int width = 64;
+        int height = 48;
+        byte[] gray = new byte[width * height];
+        new Random(42).nextBytes(gray);
+        for (int i = 0; i < width * 8; i++) gray[i] = (byte) (i % width * 4);
+        BufferedImage image = roundTrip(gray, width, height, 8);
+        assertEquals(8, image.getColorModel().getPixelSize());
+        assertPixels(gray, image);
+    }
+
+    @Test
+    public void grayMask_isSmallerThanItsPixels() throws IOException {
+        int width = 512;
+        int height = 512;
+        byte[] gray = new byte[width * height];
+        for (int y = 100; y < 300; y++) {
+            for (int x = 150; x < 400; x++) gray[y * width + x] = (byte) 255;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.writeGray(out, gray, width, height, 1);
+        assertTrue("1 bit mask took " + out.size() + " bytes", out.size() < width * height / 8 / 10);
+    }
+
+    @Test
+    public void lineArt_detection() {
+        int[] drawing = new int[1000];
+        for (int i = 0; i < drawing.length; i++) drawing[i] = i % 50 == 0 ? 0xff202020 : 0xfff0f0f0;
+        byte[] gray = PngEncoder.toGray(drawing);
+        assertTrue(PngEncoder.isLineArt(gray));
+
+        int[] photo = new int[1000];
+        for (int i = 0; i < photo.length; i++) photo[i] = 0xff000000 | (i % 256) * 0x010101;
+        assertFalse(PngEncoder.isLineArt(PngEncoder.toGray(photo)));
+    }
+
+    @Test
+    public void colouredStrokes_becomeInk() {
+        int[] drawing = new int[1000];
+        int[] strokes = {0xff00ff00, 0xffffff00, 0xff202020, 0xff80c0ff};
+        for (int i = 0; i < drawing.length; i++) {
+            drawing[i] = i % 50 == 0 ? strokes[i / 50 % strokes.length] : 0xfffafafa;
+        }
+        assertTrue(PngEncoder.isLineArt(PngEncoder.toGray(drawing)));
+        byte[] ink = PngEncoder.toInk(drawing, 192);
+        assertTrue(PngEncoder.isBlackAndWhite(ink));
+        for (int i = 0; i < drawing.length; i++) {
+            assertEquals("pixel " + i, i % 50 == 0 ? 0 : (byte) 255, ink[i]);
+        }
+    }
+
+    @Test
+    public void rgbWriter_writesBandsLosslessly() throws IOException {
+        int width = 300;
+        int height = 150;
+        int[] argb = new int[width * height];
+        Random random = new Random(3);
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = i < width * 50 ? 0xff000000 | (i % width) * 0x000101 : 0xff000000 | random.nextInt(0xffffff);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PngEncoder.RgbWriter writer = new PngEncoder.RgbWriter(out, width, height, Deflater.BEST_SPEED)) {
+            for (int top = 0; top < height; top += 64) {
+                int rows = Math.min(64, height - top);
+                int[] band = new int[width * rows];
+                System.arraycopy(argb, top * width, band, 0, band.length);
+                writer.writeRows(band, rows);
+            }
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("pixel " + x + "," + y, argb[y * width + x], image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rgbWriter_failsOnMissingRows() throws IOException {
+        try (PngEncoder.RgbWriter writer = new PngEncoder.RgbWriter(new ByteArrayOutputStream(), 4, 4, Deflater.BEST_SPEED)) {
+            writer.writeRows(new int[8], 2);
+        }
+    }
+
+    private static BufferedImage roundTrip(byte[] gray, int width, int height, int bitDepth) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngEncoder.writeGray(out, gray, width, height, bitDepth);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        return image;
+    }
+
+    private static void assertPixels(byte[] gray, BufferedImage image) {
+        int maxSample = (1 << image.getColorModel().getPixelSize()) - 1;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int expected = gray[y * image.getWidth() + x] & 0xff;
+                int actual = image.getRaster().getSample(x, y, 0) * 255 / maxSample;
+                assertEquals("pixel " + x + "," + y, expected, actual);
+            }
+        }
+    }
+}
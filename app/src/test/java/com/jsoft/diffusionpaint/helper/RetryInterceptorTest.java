@@ -0,0 +1,213 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+public class RetryInterceptorTest {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private MockWebServer server;
+    private RetryInterceptor interceptor;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        OkHttpClient probeClient = new OkHttpClient();
+        interceptor = new RetryInterceptor(probeClient, 1, 4);
+        client = new OkHttpClient.Builder()
+                .addInterceptor(interceptor)
+                .readTimeout(1, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void get_retriedAfter503() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody("[]"));
+        try (Response response = call(get("/sdapi/v1/sd-models"))) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void get_notRetriedAfter500() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        try (Response response = call(get("/sdapi/v1/sd-models"))) {
+            assertEquals(500, response.code());
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void get_givesUpAfterMaxAttempts() throws IOException {
+        for (int i = 0; i < 5; i++) server.enqueue(new MockResponse().setResponseCode(504));
+        try (Response response = call(get("/sdapi/v1/loras"))) {
+            assertEquals(504, response.code());
+        }
+        assertEquals(RetryInterceptor.Policy.IDEMPOTENT.maxAttempts, server.getRequestCount());
+    }
+
+    @Test
+    public void generation_resubmittedWhenServerIdle() throws IOException {
+        server.setDispatcher(new GenerationDispatcher(502, 0));
+        try (Response response = call(post("/sdapi/v1/txt2img"))) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, countGenerations());
+    }
+
+    @Test
+    public void generation_resubmittedAfter502WhenProgressAlsoFails() throws IOException {
+        server.setDispatcher(new GenerationDispatcher(502, -1));
+        try (Response response = call(post("/sdapi/v1/txt2img"))) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, countGenerations());
+    }
+
+    @Test
+    public void generation_notResubmittedWhenServerBusy() throws IOException {
+        server.setDispatcher(new GenerationDispatcher(504, 1));
+        try (Response response = call(post("/sdapi/v1/img2img"))) {
+            assertEquals(504, response.code());
+        }
+        assertEquals(1, countGenerations());
+    }
+
+    @Test
+    public void generation_notResubmittedAfterReadTimeoutWhenServerBusy() throws IOException {
+        server.setDispatcher(new GenerationDispatcher(-1, 1));
+        try {
+            call(post("/sdapi/v1/txt2img")).close();
+            fail("read timeout expected");
+        } catch (SocketTimeoutException expected) {
+            // the server is still working on the first submission
+        }
+        assertEquals(1, countGenerations());
+    }
+
+    @Test
+    public void post_notRetriedAfter502() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(502));
+        try (Response response = call(post("/sdapi/v1/interrupt"))) {
+            assertEquals(502, response.code());
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void progress_notRetried() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        try (Response response = call(get("/sdapi/v1/progress?skip_current_image=true"))) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void budget_limitsRetriesPerEndpoint() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(503);
+            }
+        });
+        String endpoint = RetryInterceptor.getEndpoint(server.url("/sdapi/v1/loras"));
+        while (interceptor.getBudget(endpoint) >= 1) {
+            call(get("/sdapi/v1/loras")).close();
+        }
+        int before = server.getRequestCount();
+        call(get("/sdapi/v1/loras")).close();
+        assertEquals(before + 1, server.getRequestCount());
+        assertEquals(RetryInterceptor.MAX_BUDGET, interceptor.getBudget(RetryInterceptor.getEndpoint(server.url("/sdapi/v1/sd-models"))), 0);
+    }
+
+    @Test
+    public void connectFailure_isClassified() {
+        assertTrue(RetryInterceptor.isConnectFailure(new ConnectException("Failed to connect")));
+        assertTrue(RetryInterceptor.isConnectFailure(new SocketTimeoutException("connect timed out")));
+        assertFalse(RetryInterceptor.isConnectFailure(new SocketTimeoutException("timeout")));
+    }
+
+    private Response call(Request request) throws IOException {
+        return client.newCall(request).execute();
+    }
+
+    private Request get(String path) {
+        return new Request.Builder().url(server.url(path)).get().build();
+    }
+
+    private Request post(String path) {
+        return new Request.Builder().url(server.url(path)).post(RequestBody.create("{}", JSON)).build();
+    }
+
+    private int countGenerations() {
+        int count = 0;
+        int total = server.getRequestCount();
+        for (int i = 0; i < total; i++) {
+            try {
+                RecordedRequest request = server.takeRequest(1, TimeUnit.SECONDS);
+                if (request != null && "POST".equals(request.getMethod())) count++;
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Fails the first generation with failCode, or with no response when it is -1. The progress
+     * endpoint reports jobCount jobs, or answers 502 when it is -1.
+     */
+    private static class GenerationDispatcher extends Dispatcher {
+        private final int failCode;
+        private final int jobCount;
+        private int generations;
+
+        GenerationDispatcher(int failCode, int jobCount) {
+            this.failCode = failCode;
+            this.jobCount = jobCount;
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            if (request.getPath().startsWith("/sdapi/v1/progress")) {
+                if (jobCount < 0) return new MockResponse().setResponseCode(502);
+                return new MockResponse().setBody("{\"progress\":0,\"state\":{\"job_count\":" + jobCount + "}}");
+            }
+            if (generations++ == 0) {
+                return failCode < 0
+                        ? new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE)
+                        : new MockResponse().setResponseCode(failCode);
+            }
+            return new MockResponse().setBody("{\"images\":[],\"info\":\"{}\"}");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+public class SdBackendPoolTest {
+    private MockWebServer server1;
+    private MockWebServer server2;
+    private SdBackendPool pool;
+    private String url1;
+    private String url2;
+
+    @Before
+    public void setUp() throws IOException {
+        server1 = new MockWebServer();
+        server2 = new MockWebServer();
+        server1.setDispatcher(progress(0));
+        server2.setDispatcher(progress(0));
+        server1.start();
+        server2.start();
+        url1 = server1.url("").toString().replaceAll("/$", "");
+        url2 = server2.url("").toString().replaceAll("/$", "");
+        pool = new SdBackendPool(new OkHttpClient(), 2);
+        pool.setUrls(Arrays.asList(url1, url2));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.stopHealthChecks();
+        server1.shutdown();
+        server2.shutdown();
+    }
+
+    @Test
+    public void select_prefersLeastLoaded() {
+        pool.begin(url1);
+        assertEquals(url2, pool.select());
+        pool.begin(url2);
+        pool.begin(url2);
+        assertEquals(url1, pool.select());
+        pool.end(url2, true);
+        pool.end(url2, true);
+        assertEquals(url2, pool.select());
+    }
+
+    @Test
+    public void checkHealth_usesRemoteJobCount() {
+        server1.setDispatcher(progress(3));
+        pool.checkHealth();
+        assertEquals(url2, pool.select());
+        assertTrue(server1.getRequestCount() > 0);
+    }
+
+    @Test
+    public void checkHealthOfOneServer_readmitsIt() {
+        pool.end(url1, false);
+        pool.end(url1, false);
+        assertFalse(pool.isHealthy(url1));
+        assertTrue(pool.checkHealth(url1));
+        assertTrue(pool.isHealthy(url1));
+        assertEquals(0, server2.getRequestCount());
+
+        server1.setDispatcher(status(500));
+        pool.end(url1, false);
+        assertFalse(pool.checkHealth(url1));
+    }
+
+    @Test
+    public void checkHealth_ejectsAndReadmits() {
+        server1.setDispatcher(status(500));
+        pool.checkHealth();
+        assertTrue(pool.isHealthy(url1));
+        pool.checkHealth();
+        assertFalse(pool.isHealthy(url1));
+        pool.begin(url2);
+        pool.begin(url2);
+        assertEquals(url2, pool.select());
+
+        server1.setDispatcher(progress(0));
+        pool.checkHealth();
+        assertTrue(pool.isHealthy(url1));
+        assertEquals(url1, pool.select());
+    }
+
+    @Test
+    public void checkHealth_ejectsUnreachableServer() throws IOException {
+        server2.shutdown();
+        pool.checkHealth();
+        pool.checkHealth();
+        assertFalse(pool.isHealthy(url2));
+        pool.begin(url1);
+        assertEquals(url1, pool.select());
+    }
+
+    @Test
+    public void end_failuresEjectBackend() {
+        pool.begin(url1);
+        pool.end(url1, false);
+        pool.begin(url1);
+        pool.end(url1, false);
+        assertFalse(pool.isHealthy(url1));
+        assertEquals(url2, pool.select());
+    }
+
+    @Test
+    public void select_fallsBackToFirstWhenNoneHealthy() {
+        server1.setDispatcher(status(503));
+        server2.setDispatcher(status(503));
+        pool.checkHealth();
+        pool.checkHealth();
+        assertEquals(url1, pool.select());
+    }
+
+    @Test
+    public void setUrls_keepsExistingState() {
+        pool.begin(url2);
+        pool.setUrls(Arrays.asList(url2, url1));
+        assertEquals(1, pool.getBackends().get(0).getInFlight());
+        assertEquals(url1, pool.select());
+    }
+
+    private static Dispatcher progress(int jobCount) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("{\"progress\":0.0,\"eta_relative\":0.0,\"state\":{\"job_count\":" + jobCount + "}}");
+            }
+        };
+    }
+
+    private static Dispatcher status(int code) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(code);
+            }
+        };
+    }
+}
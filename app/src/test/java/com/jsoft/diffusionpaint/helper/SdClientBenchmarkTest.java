@@ -0,0 +1,224 @@
+package com.jsoft.diffusionpaint.helper;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+import com.jsoft.diffusionpaint.dto.SdParam;
+import com.jsoft.diffusionpaint.dto.Sketch;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.*;
+
+/*
+ * End to end client benchmark against FakeSdServer: payload building in SdApiHelper, upload,
+ * response parsing and decoding of the result. Iterations can be raised with
+ * -Dsd.benchmark.iterations, the report is printed to the test output.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class SdClientBenchmarkTest {
+    private static final int ITERATIONS = Integer.getInteger("sd.benchmark.iterations", 5);
+    private static final int CANVAS_SIZE = Integer.getInteger("sd.benchmark.canvas", 1024);
+    private FakeSdServer server;
+    private Activity activity;
+    private SdApiHelper sdApiHelper;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSdServer();
+        server.setImageSize(512, 512);
+        server.start();
+        activity = Robolectric.buildActivity(Activity.class).setup().get();
+        activity.getSharedPreferences("MyPrefs", Context.MODE_PRIVATE).edit()
+                .putString("sdServerAddress", server.getBaseUrl())
+                .putString("maxBatchSize", "2")
+                .commit();
+        sdApiHelper = new SdApiHelper(activity, new SdApiResponseListener() {
+            @Override
+            public void onSdApiFailure(String requestType, String errorMessage) {}
+
+            @Override
+            public void onSdApiResponse(String requestType, String responseBody) {}
+        });
+        client = HttpClientRegistry.getClient(10, 120);
+        EncodedImageCache.getInstance().clear();
+        NetworkStats.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void img2img_endToEnd() throws Exception {
+        Sketch sketch = createSketch(CANVAS_SIZE);
+        Benchmark benchmark = run("img2img scribble " + CANVAS_SIZE + "px", () -> {
+            sketch.setCnMode(Sketch.CN_MODE_IMG_SCRIBBLE);
+            SdParam param = sdApiHelper.getSdCnParm(sketch.getCnMode());
+            JSONObject jsonObject = sdApiHelper.getControlnetImg2imgJSON(param, sketch);
+            SdApiHelper.putBatchSize(jsonObject, 2, sdApiHelper.getMaxBatchSize());
+            return send("img2img", jsonObject);
+        });
+        assertEquals(ITERATIONS * 2, benchmark.images);
+        assertTrue("unchanged sketch should reuse encodings", EncodedImageCache.getInstance().getHitCount() > 0);
+    }
+
+    @Test
+    public void txt2img_endToEnd() throws Exception {
+        Sketch sketch = new Sketch();
+        sketch.setCnMode(Sketch.CN_MODE_TXT);
+        sketch.setImgBackground(Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888));
+        Benchmark benchmark = run("txt2img", () -> {
+            SdParam param = sdApiHelper.getSdCnParm(sketch.getCnMode());
+            JSONObject jsonObject = sdApiHelper.getControlnetTxt2imgJSON(param, sketch);
+            return send("txt2img", jsonObject);
+        });
+        assertEquals(ITERATIONS, benchmark.images);
+    }
+
+    @Test
+    public void extraSingleImage_endToEnd() throws Exception {
+        server.setImageSize(256, 256);
+        Bitmap bitmap = createSketch(512).getImgPreview();
+        Benchmark benchmark = run("extra-single-image x2", () ->
+                send("extraSingleImage", sdApiHelper.getExtraSingleImageJSON(bitmap, 2)));
+        assertEquals(ITERATIONS, benchmark.images);
+    }
+
+    private interface Iteration {
+        int run() throws Exception;
+    }
+
+    private static class Benchmark {
+        final List<Long> latencies = new ArrayList<>();
+        long allocatedBytes;
+        long peakHeap;
+        long elapsed;
+        int images;
+    }
+
+    private Benchmark run(String name, Iteration iteration) throws Exception {
+        iteration.run();
+        EncodedImageCache.getInstance().clear();
+        System.gc();
+
+        Benchmark benchmark = new Benchmark();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long iterationStart = System.nanoTime();
+            benchmark.images += iteration.run();
+            benchmark.latencies.add((System.nanoTime() - iterationStart) / 1000000);
+        }
+        benchmark.elapsed = (System.nanoTime() - start) / 1000000;
+        benchmark.allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        for (MemoryPoolMXBean pool : heapPools) {
+            benchmark.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        report(name, benchmark);
+        return benchmark;
+    }
+
+    /* Returns the number of images decoded from the response. */
+    private int send(String requestType, JSONObject jsonObject) throws Exception {
+        String path = "extraSingleImage".equals(requestType) ? "/sdapi/v1/extra-single-image" : "/sdapi/v1/" + requestType;
+        Request request = new Request.Builder()
+                .url(server.getBaseUrl() + path)
+                .tag(String.class, requestType)
+                .post(new SdRequestBody(jsonObject))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            assertTrue("Response Code: " + response.code(), response.isSuccessful() && body != null);
+            SdImageResponse sdResponse = SdResponseReader.readImageResponse(body.source(), activity.getCacheDir());
+            try {
+                int decoded = 0;
+                for (int i = sdResponse.getIndexOfFirstImage(); i < sdResponse.images.size(); i++) {
+                    Bitmap bitmap = BitmapFactory.decodeFile(sdResponse.images.get(i).getAbsolutePath());
+                    assertNotNull(bitmap);
+                    decoded++;
+                }
+                return decoded;
+            } finally {
+                sdResponse.deleteImages();
+            }
+        }
+    }
+
+    private static void report(String name, Benchmark benchmark) {
+        List<Long> sorted = new ArrayList<>(benchmark.latencies);
+        Collections.sort(sorted);
+        System.out.println(String.format(Locale.US,
+                "[benchmark] %s: %d iterations, %.2f req/s, latency p50 %d ms, p90 %d ms, max %d ms, allocated %.1f MB/iteration, peak heap %.1f MB",
+                name, sorted.size(), sorted.size() * 1000d / Math.max(1, benchmark.elapsed),
+                percentile(sorted, 0.5), percentile(sorted, 0.9), sorted.get(sorted.size() - 1),
+                benchmark.allocatedBytes / 1048576d / sorted.size(), benchmark.peakHeap / 1048576d));
+        System.out.println("[benchmark] " + name + " network: " + NetworkStats.toJSON());
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static Sketch createSketch(int size) {
+        Bitmap background = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(background);
+        canvas.drawColor(Color.WHITE);
+        Paint paint = new Paint();
+        paint.setStrokeWidth(8);
+        Bitmap imgPaint = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas paintCanvas = new Canvas(imgPaint);
+        for (int i = 0; i < 40; i++) {
+            paint.setColor(Color.rgb(i * 6, 255 - i * 6, 128));
+            paintCanvas.drawLine(i * size / 40f, 0, size - i * size / 40f, size, paint);
+        }
+        Bitmap preview = background.copy(Bitmap.Config.ARGB_8888, true);
+        new Canvas(preview).drawBitmap(imgPaint, 0, 0, null);
+
+        Sketch sketch = new Sketch();
+        sketch.setPrompt("a cat");
+        sketch.setImgBackground(background);
+        sketch.setImgPaint(imgPaint);
+        sketch.setImgPreview(preview);
+        return sketch;
+    }
+}
@@ -0,0 +1,52 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import static org.junit.Assert.*;
+
+public class SdResponseReaderTest {
+
+    @Test
+    public void nextString_keepsCharactersSplitBetweenSegments() throws IOException {
+        String info = "{\"prompt\": \"caf\u00e9 \u732b \uD83C\uDFA8\", \"note\": \"a\\nb \\u00e9\"}";
+        SdResponseReader reader = new SdResponseReader(trickle(info));
+        reader.beginObject();
+        assertEquals("prompt", reader.nextName());
+        assertEquals("caf\u00e9 \u732b \uD83C\uDFA8", reader.nextString());
+        assertTrue(reader.hasNext());
+        assertEquals("note", reader.nextName());
+        assertEquals("a\nb \u00e9", reader.nextString());
+        assertFalse(reader.hasNext());
+        reader.endObject();
+    }
+
+    /* A source that hands out one byte per read, as a slow network would at segment boundaries. */
+    private static BufferedSource trickle(String text) {
+        Buffer data = new Buffer().writeUtf8(text);
+        return Okio.buffer(new Source() {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                if (data.size() == 0) return -1;
+                sink.write(data, 1);
+                return 1;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
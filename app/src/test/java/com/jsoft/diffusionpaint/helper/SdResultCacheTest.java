@@ -0,0 +1,100 @@
+package com.jsoft.diffusionpaint.helper;
+
+import com.jsoft.diffusionpaint.dto.SdImageResponse;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SdResultCacheTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = tempFolder.newFolder("temp");
+    }
+
+    @Test
+    public void randomSeed_hasNoKey() throws Exception {
+        assertNull(SdResultCache.getKey("txt2img", new JSONObject("{\"prompt\":\"cat\",\"seed\":-1}"), "model"));
+        assertNull(SdResultCache.getKey("txt2img", new JSONObject("{\"prompt\":\"cat\"}"), "model"));
+    }
+
+    @Test
+    public void key_isCanonical() throws Exception {
+        String key = SdResultCache.getKey("txt2img", new JSONObject(
+                "{\"prompt\":\"cat\",\"seed\":42,\"steps\":20,\"override_settings\":{\"CLIP_stop_at_last_layers\":1,\"sd_model_checkpoint\":\"a\"},\"save_images\":false}"), "a");
+        assertNotNull(key);
+        assertEquals(key, SdResultCache.getKey("txt2img", new JSONObject(
+                "{\"override_settings\":{\"CLIP_stop_at_last_layers\":1},\"steps\":20,\"seed\":42,\"prompt\":\"cat\",\"override_settings_restore_afterwards\":true}"), "a"));
+        assertNotEquals(key, SdResultCache.getKey("txt2img", new JSONObject(
+                "{\"prompt\":\"cat\",\"seed\":43,\"steps\":20,\"override_settings\":{\"CLIP_stop_at_last_layers\":1}}"), "a"));
+        assertNotEquals(key, SdResultCache.getKey("txt2img", new JSONObject(
+                "{\"prompt\":\"cat\",\"seed\":42,\"steps\":20,\"override_settings\":{\"CLIP_stop_at_last_layers\":1}}"), "b"));
+        assertNotEquals(key, SdResultCache.getKey("img2img", new JSONObject(
+                "{\"prompt\":\"cat\",\"seed\":42,\"steps\":20,\"override_settings\":{\"CLIP_stop_at_last_layers\":1}}"), "a"));
+    }
+
+    @Test
+    public void putAndGet_returnCopyOfImages() throws Exception {
+        SdResultCache cache = new SdResultCache(tempFolder.newFolder("cache"), 1024 * 1024);
+        String key = SdResultCache.getKey("txt2img", new JSONObject("{\"prompt\":\"cat\",\"seed\":1}"), "");
+        assertNull(cache.get(key, tempDir));
+
+        SdImageResponse response = new SdImageResponse();
+        response.info = "{\"infotexts\":[\"cat\"]}";
+        response.images.add(image("one", 100));
+        response.images.add(image("two", 200));
+        cache.put(key, response);
+        response.deleteImages();
+
+        SdImageResponse cached = cache.get(key, tempDir);
+        assertNotNull(cached);
+        assertEquals(2, cached.images.size());
+        assertEquals("{\"infotexts\":[\"cat\"]}", cached.info);
+        assertEquals(200, cached.images.get(1).length());
+        cached.deleteImages();
+        assertNotNull("consumer deleting its copy keeps the entry", cache.get(key, tempDir));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        SdResultCache cache = new SdResultCache(tempFolder.newFolder("cache"), 2500);
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = SdResultCache.getKey("txt2img", new JSONObject("{\"seed\":" + i + "}"), "");
+            SdImageResponse response = new SdImageResponse();
+            response.images.add(image("image" + i, 1000));
+            cache.put(keys[i], response);
+            // directory times have a coarse resolution on some file systems
+            new File(tempFolder.getRoot(), "cache/" + keys[i]).setLastModified(System.currentTimeMillis() - (keys.length - i) * 10000L);
+            if (i == 1) {
+                assertNotNull(cache.get(keys[0], tempDir));
+            }
+        }
+        assertNotNull(cache.get(keys[0], tempDir));
+        assertNull(cache.get(keys[1], tempDir));
+        assertNotNull(cache.get(keys[2], tempDir));
+        assertTrue(cache.getSize() <= 2500);
+    }
+
+    private File image(String name, int size) throws IOException {
+        File file = new File(tempDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,157 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileLayoutTest {
+
+    @Test
+    public void tiles_coverCanvasWithOverlap() {
+        int[][] canvases = {{3840, 2160}, {8000, 8000}, {768 + 641, 1000}, {1024, 768}, {500, 300}};
+        for (int[] canvas : canvases) {
+            TileLayout layout = new TileLayout(canvas[0], canvas[1], 768, 128);
+            boolean[] covered = new boolean[canvas[0] * canvas[1]];
+            for (int i = 0; i < layout.getTileCount(); i++) {
+                int[] rect = layout.getTileRect(i);
+                assertTrue(rect[0] >= 0 && rect[1] >= 0 && rect[2] <= canvas[0] && rect[3] <= canvas[1]);
+                int width = rect[2] - rect[0];
+                int height = rect[3] - rect[1];
+                assertTrue(width == canvas[0] || width % TileLayout.BLOCK_SIZE == 0);
+                assertTrue(height == canvas[1] || height % TileLayout.BLOCK_SIZE == 0);
+                assertTrue(width <= 768 && height <= 768);
+                for (int y = rect[1]; y < rect[3]; y++) {
+                    for (int x = rect[0]; x < rect[2]; x++) covered[y * canvas[0] + x] = true;
+                }
+                if (i % layout.getColumns() > 0) {
+                    assertTrue(layout.getTileRect(i - 1)[2] - rect[0] >= 128);
+                }
+            }
+            for (boolean c : covered) assertTrue(c);
+        }
+        TileLayout layout = new TileLayout(3840, 2160, 768, 128);
+        assertEquals(6, layout.getColumns());
+        assertEquals(4, layout.getRows());
+    }
+
+    @Test
+    public void blend_isIndependentOfOrder() {
+        int width = 1500;
+        int height = 900;
+        TileLayout layout = new TileLayout(width, height, 512, 96);
+        Random random = new Random(7);
+        int[] colors = new int[layout.getTileCount()];
+        for (int i = 0; i < colors.length; i++) colors[i] = 0xff000000 | random.nextInt(0xffffff);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < colors.length; i++) order.add(i);
+        int[] first = render(layout, width, height, colors, order);
+        Collections.shuffle(order, random);
+        int[] second = render(layout, width, height, colors, order);
+        for (int i = 0; i < first.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int a = (first[i] >> shift) & 0xff;
+                int b = (second[i] >> shift) & 0xff;
+                assertTrue("pixel " + i + ": " + a + " vs " + b, Math.abs(a - b) <= 2);
+            }
+        }
+        // away from the seams a pixel is that of its own tile
+        assertEquals(colors[0], first[10 * width + 10]);
+    }
+
+    @Test
+    public void blend_ofEqualTilesHasNoSeams() {
+        int width = 2000;
+        int height = 1300;
+        TileLayout layout = new TileLayout(width, height, 768, 128);
+        int[] colors = new int[layout.getTileCount()];
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xff336699;
+            order.add(colors.length - 1 - i);
+        }
+        for (int pixel : render(layout, width, height, colors, order)) {
+            assertEquals(0xff336699, pixel);
+        }
+    }
+
+    @Test
+    public void scale_keepsTilesOnTheScaledCanvas() {
+        TileLayout layout = new TileLayout(1500, 900, 512, 32);
+        TileLayout scaled = layout.scale(2.5);
+        assertEquals(3750, scaled.getWidth());
+        assertEquals(2250, scaled.getHeight());
+        assertEquals(layout.getTileCount(), scaled.getTileCount());
+        for (int i = 0; i < layout.getTileCount(); i++) {
+            int[] rect = layout.getTileRect(i);
+            int[] scaledRect = scaled.getTileRect(i);
+            for (int k = 0; k < 4; k++) assertEquals(Math.round(rect[k] * 2.5), scaledRect[k]);
+        }
+    }
+
+    @Test
+    public void blend_byBandsEqualsWholeTiles() {
+        int width = 1200;
+        int height = 1000;
+        TileLayout layout = new TileLayout(width, height, 512, 64);
+        Random random = new Random(11);
+        int[] colors = new int[layout.getTileCount()];
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xff000000 | random.nextInt(0xffffff);
+            order.add(i);
+        }
+        int[] whole = render(layout, width, height, colors, order);
+
+        int[] banded = new int[width * height];
+        for (int top = 0; top < height; top += 100) {
+            int bottom = Math.min(height, top + 100);
+            boolean[] placed = new boolean[layout.getTileCount()];
+            for (int index : order) {
+                int[] rect = layout.getTileRect(index);
+                int tileTop = Math.max(top, rect[1]);
+                int tileBottom = Math.min(bottom, rect[3]);
+                if (tileTop >= tileBottom) continue;
+                int tileWidth = rect[2] - rect[0];
+                int[] tile = new int[tileWidth * (tileBottom - tileTop)];
+                Arrays.fill(tile, colors[index]);
+                int[] region = new int[tile.length];
+                for (int y = tileTop; y < tileBottom; y++) {
+                    System.arraycopy(banded, y * width + rect[0], region, (y - tileTop) * tileWidth, tileWidth);
+                }
+                layout.blend(index, tile, region, placed, tileTop, tileBottom);
+                for (int y = tileTop; y < tileBottom; y++) {
+                    System.arraycopy(region, (y - tileTop) * tileWidth, banded, y * width + rect[0], tileWidth);
+                }
+            }
+        }
+        assertArrayEquals(whole, banded);
+    }
+
+    private static int[] render(TileLayout layout, int width, int height, int[] colors, List<Integer> order) {
+        int[] canvas = new int[width * height];
+        boolean[] placed = new boolean[layout.getTileCount()];
+        for (int index : order) {
+            int[] rect = layout.getTileRect(index);
+            int tileWidth = rect[2] - rect[0];
+            int tileHeight = rect[3] - rect[1];
+            int[] tile = new int[tileWidth * tileHeight];
+            Arrays.fill(tile, colors[index]);
+            int[] region = new int[tile.length];
+            for (int y = 0; y < tileHeight; y++) {
+                System.arraycopy(canvas, (rect[1] + y) * width + rect[0], region, y * tileWidth, tileWidth);
+            }
+            layout.blend(index, tile, region, placed);
+            for (int y = 0; y < tileHeight; y++) {
+                System.arraycopy(region, y * tileWidth, canvas, (rect[1] + y) * width + rect[0], tileWidth);
+            }
+        }
+        return canvas;
+    }
+}
@@ -0,0 +1,38 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploadCodecPolicyTest {
+    private static final double MB = 1024 * 1024;
+
+    @After
+    public void tearDown() {
+        UploadCodecPolicy.reset();
+    }
+
+    @Test
+    public void unknownOrFastLink_keepsJpeg90() {
+        assertEquals("jpeg/90", UploadCodecPolicy.choose(UploadCodecPolicy.INPUT_PHOTO, 0).toString());
+        assertEquals("jpeg/90", UploadCodecPolicy.choose(UploadCodecPolicy.INPUT_CONTROL, 10 * MB).toString());
+    }
+
+    @Test
+    public void slowerLinks_useSmallerCodecsAboveFloors() {
+        assertEquals("jpeg/80", UploadCodecPolicy.choose(UploadCodecPolicy.INPUT_PHOTO, 1 * MB).toString());
+        assertEquals("webp/80", UploadCodecPolicy.choose(UploadCodecPolicy.INPUT_PHOTO, 0.2 * MB).toString());
+        assertEquals("webp/70", UploadCodecPolicy.choose(UploadCodecPolicy.INPUT_CONTROL, 0.2 * MB).toString());
+    }
+
+    @Test
+    public void recordUpload_ignoresSmallBodiesAndAverages() {
+        UploadCodecPolicy.recordUpload(1000, 1000000000L);
+        assertEquals(0, UploadCodecPolicy.getThroughput(), 0);
+        UploadCodecPolicy.recordUpload(1024 * 1024, 1000000000L);
+        assertEquals(MB, UploadCodecPolicy.getThroughput(), 1);
+        UploadCodecPolicy.recordUpload(1024 * 1024, 500000000L);
+        assertEquals(1.3 * MB, UploadCodecPolicy.getThroughput(), 1);
+    }
+}
@@ -0,0 +1,35 @@
+package com.jsoft.diffusionpaint.helper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploadResamplerTest {
+
+    @Test
+    public void resize_stretchesToTarget() {
+        assertArrayEquals(new int[] {768, 512}, UploadResampler.getScaledSize(3840, 2160, 768, 512, UploadResampler.MODE_RESIZE));
+        assertArrayEquals(new int[] {0, 0, 3840, 2160}, UploadResampler.getSourceRect(3840, 2160, 768, 512, UploadResampler.MODE_RESIZE));
+    }
+
+    @Test
+    public void crop_keepsCentreAtTargetAspect() {
+        assertArrayEquals(new int[] {768, 512}, UploadResampler.getScaledSize(3840, 2160, 768, 512, UploadResampler.MODE_CROP));
+        // 2160 / 432 = 5, so 512 * 5 = 2560 columns are kept around the centre
+        assertArrayEquals(new int[] {640, 0, 3200, 2160}, UploadResampler.getSourceRect(3840, 2160, 512, 432, UploadResampler.MODE_CROP));
+        assertArrayEquals(new int[] {0, 0, 3840, 2160}, UploadResampler.getSourceRect(3840, 2160, 1024, 576, UploadResampler.MODE_CROP));
+    }
+
+    @Test
+    public void fill_fitsInsideTarget() {
+        assertArrayEquals(new int[] {512, 288}, UploadResampler.getScaledSize(3840, 2160, 512, 512, UploadResampler.MODE_FILL));
+        assertArrayEquals(new int[] {0, 0, 3840, 2160}, UploadResampler.getSourceRect(3840, 2160, 512, 512, UploadResampler.MODE_FILL));
+    }
+
+    @Test
+    public void smallSource_isNotUpscaled() {
+        assertNull(UploadResampler.getScaledSize(512, 512, 768, 768, UploadResampler.MODE_RESIZE));
+        assertNull(UploadResampler.getScaledSize(768, 512, 768, 512, UploadResampler.MODE_CROP));
+        assertNull(UploadResampler.getSourceRect(600, 400, 768, 768, UploadResampler.MODE_FILL));
+    }
+}